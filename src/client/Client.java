@@ -1,38 +1,42 @@
 package client;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
-import org.xbill.DNS.CNAMERecord;
-import org.xbill.DNS.DClass;
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
-import org.xbill.DNS.Name;
-import org.xbill.DNS.Opcode;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.Section;
-import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.Type;
 
 import common.ClientPacket;
 import common.Common;
 import common.ConnectionAcceptedServerPacket;
+import common.ConnectionBatchAcceptedServerPacket;
+import common.ConnectionBatchRequestClientPacket;
 import common.ConnectionRequestClientPacket;
 import common.ConnectionState;
 import common.DNSSizes;
+import common.DNSWire;
 import common.LZMAPacketConverter;
 import common.Log;
+import common.MuxPortCommunicator;
 import common.Packet;
 import common.PortCommunicator;
 import common.PortCommunicatorListener;
@@ -49,19 +53,73 @@ public class Client implements PortCommunicatorListener {
 	public static final int DEFAULT_INTERVAL = 200;
 	public static final int DEFAULT_TRUNCATION_ALLOWANCE = 0;
 	public static final int REASK_TIMEOUT    = 3000;
+	public static final int DEFAULT_IN_FLIGHT = 8;
+	public static final int DEFAULT_WARM_CONNECTIONS = 0;
+	public static final int DEFAULT_ACCEPT_BACKLOG = 64;
+	/** packets in flight each way on servers that take 16 bit packet ids */
+	public static final int DEFAULT_WINDOW = 256;
+	/** ms before giving up on an answer, longer than the server holds a poll plus a slow resolver */
+	public static final int QUERY_TIMEOUT    = 2500;
+	/** data queries slower than this percentile of their server's answers are hedged */
+	public static final int HEDGE_PERCENTILE = 95;
+	/** hedges allowed per query sent */
+	public static final double HEDGE_BUDGET  = 0.05;
+	/** hedges that can be saved up while everything is on time */
+	public static final int MAX_HEDGE_BURST  = 4;
 
 	public static final int MAX_CONNECTION_RETRIES = 20;
 	
 	private int dnsPacketId;
 	private ClientOptions clientOpts;
 	private final LinkedList<ServerPacket> dnsMessages;
+	/** clientOpts.domain in wire format */
+	private byte [] domainWire;
+	/** queries are written here, only touched by the update thread */
+	private ByteBuffer queryBuffer;
 	private final LinkedList<PendingConnection> pendingConnections;
 	private ArrayList<ConnectionState> connections;
+	/** carries the tcp streams with --multiplex, null until the server accepts it. Locked by pendingConnections */
+	private MuxPortCommunicator mux;
+	private ConnectionState muxConnection;
+	/** sockets accepted while the multiplexed connection is being set up */
+	private LinkedList<Socket> muxWaiting;
+	/** the server doesn't multiplex, each socket gets its own connection */
+	private boolean muxUnsupported;
+	/** connections set up ahead of time for new sockets, null if there are none */
+	private WarmPool pool;
+	/** connections the pool had no room for */
+	private ArrayList<ConnectionState> poolSurplus;
+	/** the server has said it takes early data in connection requests */
+	private volatile boolean serverTakesEarlyData;
+	/** the most early data a connection request can carry */
+	private int earlyDataRoom;
+	/** the server answers several connection requests in one packet */
+	private volatile boolean serverTakesBatches;
+	/** the most connection requests one batch can carry, both ways */
+	private int maxBatch;
 	private long lastPacketSent;
 	private ArrayList<DNSServer> dnsSocks;
+	/** for when every dns server is out of use */
 	private int dnsIndex;
+	private Random dnsRand;
+	/** reused by update for the queries that timed out */
+	private ArrayList<InFlightQueries.InFlightQuery> expired;
+	/** reused by update for the queries to hedge */
+	private ArrayList<InFlightQueries.InFlightQuery> slow;
+	private double hedgeTokens;
 	private int lastConnectionUsed;
-	private ArrayList<DNSListenThread> dnsThreads;
+	/** reads the answers from every dns server */
+	private DNSReceiveThread dnsReceiver;
+	/** queries waiting on an answer, by dns id */
+	private InFlightQueries inFlight;
+	/** how many of those we can have while data is moving */
+	private QueryPacer pacer;
+	/** the last answer carried data, more is likely waiting on the server */
+	private volatile boolean downstreamBusy;
+	/** shares the upstream queries between connections with data to send */
+	private FairScheduler scheduler;
+	/** answers taken off dnsMessages to hand out */
+	private ArrayList<ServerPacket> received;
 	
 	private UDPPortCommunicator udpCommunicator;
 	
@@ -88,11 +146,17 @@ public class Client implements PortCommunicatorListener {
 			Log.get().println(Log.LEVEL_INFO, "Using dns server: " + Common.DEFAULT_DNS_PORT + ":" + dns);
 		}
 		Log.get().println(Log.LEVEL_INFO, "Interval: " + opts.interval);
+		Log.get().println(Log.LEVEL_INFO, "Max queries in flight: " + opts.inFlight);
+		Log.get().println(Log.LEVEL_INFO, "Multiplex tcp connections: " + opts.multiplex);
+		Log.get().println(Log.LEVEL_INFO, "Warm connections: " + opts.warmConnections);
+		Log.get().println(Log.LEVEL_INFO, "Accept backlog: " + opts.acceptBacklog);
+		Log.get().println(Log.LEVEL_INFO, "Window: " + opts.window + " packets");
 		Log.get().println(Log.LEVEL_INFO, "MTU: " + opts.mtu);
 		Log.get().println(Log.LEVEL_INFO, "Listening on: " + opts.listenPort + ":" + opts.listenAddr);
 		Log.get().println(Log.LEVEL_INFO, "Truncation allowance: " + opts.truncationAllowance);
 		Log.get().println(Log.LEVEL_INFO, "Query type: " + (opts.queryType == ClientOptions.TXT_QUERIES ? "TXT" : "CNAME"));
 		Log.get().println(Log.LEVEL_INFO, "Client encoding: " + ClientCmdLineParser.encodingToString(opts.clientEnc));
+		Log.get().println(Log.LEVEL_INFO, "EDNS0 size: " + opts.ednsSize);
 		Log.get().println(Log.LEVEL_INFO, "Log level: " + opts.logLevel);
 	}
 	
@@ -103,19 +167,35 @@ public class Client implements PortCommunicatorListener {
 		this.clientOpts = opts;
 		this.dnsSocks = new ArrayList<DNSServer>();
 		this.pendingConnections = new LinkedList<PendingConnection>();
-		this.dnsThreads = new ArrayList<DNSListenThread>();
+		this.muxWaiting = new LinkedList<Socket>();
+		if (opts.warmConnections > 0 && !opts.multiplex) {
+			this.pool = new WarmPool(opts.warmConnections);
+		}
+		this.poolSurplus = new ArrayList<ConnectionState>();
+		this.earlyDataRoom = ConnectionRequestClientPacket.maxEarlyData(opts.domain, opts.clientEnc);
+		this.maxBatch = Math.min(
+				ConnectionBatchRequestClientPacket.maxCount(Packet.maxDataLength(opts.domain, 0, opts.clientEnc) - Packet.FIXED_HEADER_SIZE),
+				ConnectionBatchAcceptedServerPacket.maxCount(Packet.maxDataLength(opts.domain, opts.truncationAllowance, Packet.ENC_SAFE16) - Packet.FIXED_HEADER_SIZE));
+		this.inFlight = new InFlightQueries();
+		this.pacer = new QueryPacer(opts.inFlight);
+		this.dnsRand = new Random();
+		this.expired = new ArrayList<InFlightQueries.InFlightQuery>();
+		this.slow = new ArrayList<InFlightQueries.InFlightQuery>();
 		
 		for (InetAddress iaddr : opts.dnsServers) {
 			InetSocketAddress dnsTarget = new InetSocketAddress(iaddr, Common.DEFAULT_DNS_PORT);
-			DatagramSocket dnsSock = new DatagramSocket(0, opts.dnsRequestAddress);
-			DNSServer sockAndTarget = new DNSServer(dnsSock, dnsTarget);
-			dnsSocks.add(sockAndTarget);
-					
-			DNSListenThread dnsThread = new DNSListenThread(sockAndTarget);
-			dnsThread.start();
-			dnsThreads.add(dnsThread);
+			DatagramChannel dnsChan = DatagramChannel.open();
+			dnsChan.socket().bind(new InetSocketAddress(opts.dnsRequestAddress, 0));
+			dnsChan.configureBlocking(false);
+			dnsSocks.add(new DNSServer(dnsChan, dnsTarget));
 		}
+		this.dnsReceiver = new DNSReceiveThread(dnsSocks);
+		this.dnsReceiver.start();
 		this.dnsMessages = new LinkedList<ServerPacket>();
+		this.scheduler = new FairScheduler(dnsMessages);
+		this.received = new ArrayList<ServerPacket>();
+		this.domainWire = DNSWire.toWireName(opts.domain);
+		this.queryBuffer = ByteBuffer.allocate(DNSSizes.MAX_PACKET_SIZE);
 
 		this.udpCommunicator = new UDPPortCommunicator(new DatagramSocket(clientOpts.listenPort, clientOpts.listenAddr), Common.DEFAULT_MTU, getLateTimerMillis(clientOpts.interval)*2, true) {
 			//when the udp communicator closes, dont actually close the socket
@@ -145,23 +225,16 @@ public class Client implements PortCommunicatorListener {
 	
 	private void listenToTCP(InetAddress addr, int port) {
 		try {
-			ServerSocket serverSocket = new ServerSocket(port, 8, addr);
+			ServerSocket serverSocket = new ServerSocket(port, clientOpts.acceptBacklog, addr);
 			while (true) {
 				Socket socket = serverSocket.accept();
 				socket.setTcpNoDelay(true);
 				socket.setSendBufferSize(Common.DEFAULT_MTU);
 				
-				ConnectionRequestClientPacket request = 
-					new ConnectionRequestClientPacket(
-							0, new Random().nextInt(), 
-							getLateTimerMillis(clientOpts.interval), 
-							ConnectionRequestClientPacket.FLAG_TCP,
-							(short)clientOpts.truncationAllowance);
-				
-				PendingConnection pendConn = new PendingConnection(request, socket);
-				
-				synchronized (pendingConnections) {
-					pendingConnections.add(pendConn);
+				if (clientOpts.multiplex) {
+					addMuxStream(socket);
+				} else if (pool == null || !pool.bind(socket)) {
+					requestTCPConnection(socket);
 				}
 			}
 		} catch (IOException e) {
@@ -170,15 +243,73 @@ public class Client implements PortCommunicatorListener {
 		}
 	}
 	
+	/**
+	 * @return a request for a connection with the late timer, truncation
+	 *         allowance and window size the options ask for
+	 */
+	private ConnectionRequestClientPacket newConnectionRequest(int mtu, int challengeId, int flags) {
+		ConnectionRequestClientPacket request = new ConnectionRequestClientPacket(
+				mtu, challengeId, 
+				getLateTimerMillis(clientOpts.interval), 
+				flags | ConnectionRequestClientPacket.FLAG_WIDE_IDS | ConnectionRequestClientPacket.FLAG_SACK,
+				(short)clientOpts.truncationAllowance);
+		request.setWindowSize(clientOpts.window);
+		return request;
+	}
+	
+	private void requestTCPConnection(Socket socket) {
+		ConnectionRequestClientPacket request = newConnectionRequest(0, new Random().nextInt(), ConnectionRequestClientPacket.FLAG_TCP | ConnectionRequestClientPacket.FLAG_MULTI_PACKET);
+		
+		PendingConnection pendConn = new PendingConnection(request, socket);
+		
+		synchronized (pendingConnections) {
+			pendingConnections.add(pendConn);
+		}
+	}
+	
+	/**
+	 * Carries the socket as a stream of the multiplexed connection, asking 
+	 * the server for that connection first if there isn't one yet.
+	 */
+	private void addMuxStream(Socket socket) {
+		synchronized (pendingConnections) {
+			if (muxUnsupported) {
+				requestTCPConnection(socket);
+				return;
+			}
+			if (mux != null) {
+				mux.openStream(socket);
+				return;
+			}
+			
+			muxWaiting.add(socket);
+			for (PendingConnection pc : pendingConnections) {
+				if (pc.isMultiplexed()) {
+					return;
+				}
+			}
+			ConnectionRequestClientPacket request = newConnectionRequest(0, new Random().nextInt(), ConnectionRequestClientPacket.FLAG_TCP | ConnectionRequestClientPacket.FLAG_MULTI_PACKET | ConnectionRequestClientPacket.FLAG_MULTIPLEX);
+			pendingConnections.add(new PendingConnection(request, null));
+		}
+	}
+	
+	/**
+	 * Call with pendingConnections locked.
+	 */
+	private void closeMuxWaiting() {
+		for (Socket socket : muxWaiting) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		muxWaiting.clear();
+	}
+	
 	//the first UDP packet to come in will trigger a connection to the server
 	public void onPacketReceived(/*byte[] data, int dataLen, boolean splittable*/) {
  		int pendingChallengeId = new Random().nextInt();
-		ConnectionRequestClientPacket conReq = new ConnectionRequestClientPacket(
-				clientOpts.mtu,
-				pendingChallengeId,
-				getLateTimerMillis(clientOpts.interval), 
-				0,
-				(short)clientOpts.truncationAllowance);
+		ConnectionRequestClientPacket conReq = newConnectionRequest(clientOpts.mtu, pendingChallengeId, ConnectionRequestClientPacket.FLAG_MULTI_PACKET);
 		
 		synchronized (pendingConnections) {
 			for (PendingConnection pc : pendingConnections) {
@@ -223,64 +354,148 @@ public class Client implements PortCommunicatorListener {
 		
 		handOutCollectedMessages();
 		
-		//now see if we should go ahead and send out the next packet
 		long currentTime = System.currentTimeMillis();
-		long timeToWait = lastPacketSent + clientOpts.interval - currentTime; 
-		if (timeToWait <= 0) {
+		expired.clear();
+		inFlight.expire(currentTime, QUERY_TIMEOUT, expired);
+		if (!expired.isEmpty()) {
+			Log.get().println(Log.LEVEL_SPAM, "Gave up on " + expired.size() + " unanswered queries.");
+			pacer.lost(currentTime);
+			for (InFlightQueries.InFlightQuery query : expired) {
+				dnsFailed(query.dns, currentTime);
+			}
+		}
+		hedgeSlowQueries(currentTime);
+		
+		//keep up to the pacer's window of queries going. While data is moving the
+		//pipeline is refilled as answers come in, an idle tunnel polls once per interval
+		int window = Math.min(clientOpts.inFlight, pacer.getWindow());
+		refillPool();
+		
+		boolean streaming = downstreamBusy || scheduler.hasReady();
+		boolean nothingToSend = false;
+		while (inFlight.size() < window) {
+			int gap = streaming ? pacer.getSendGap() : clientOpts.interval;
+			if (currentTime - lastPacketSent < gap) {
+				break;
+			}
+			
 			ClientPacket clientPkt = getNextPendingConnectionPacket();
+			
+			if (clientPkt == null && pool != null) {
+				ConnectionState idle = pool.nextKeepAlive(currentTime);
+				if (idle != null) {
+					clientPkt = (ClientPacket) idle.keepAlive();
+				}
+			}
 
 			if (clientPkt == null) {
 				clientPkt = getNextDataPacket();
 				
 				if (clientPkt == null) {
-					return clientOpts.interval;
+					nothingToSend = true;
+					break;
 				}
 			}
 			
 			//simulate some packet loss
 			//if (new Random().nextDouble() > .7) {
-			//	return clientOpts.interval;
+			//	break;
 			//}
 			
-			clientPkt.updateChecksum();
-			Log.get().println(Log.LEVEL_SPAM, "Sent: " + clientPkt);
-			
-			Message dnsQuery = new Message((dnsPacketId++) & 0xffff);
-			dnsQuery.getHeader().setOpcode(Opcode.QUERY);
-			dnsQuery.getHeader().setFlag(Flags.RD);
-	
-			Name encodedName = clientPkt.encodeAsName(clientOpts.domain);
-
-			Record question;
-			if (clientOpts.queryType == ClientOptions.TXT_QUERIES) {
-				//do not use Inet4Address.getLocalHost (breaks some systems)
-				question = new TXTRecord(encodedName, DClass.IN, Common.DEFAULT_TTL, "");//Inet4Address.getByAddress(new byte[] {127,0,0,1}));
-			} else {
-				question = new CNAMERecord(encodedName, DClass.IN, Common.DEFAULT_TTL, Name.fromString("dummy.com."));//Inet4Address.getByAddress(new byte[]{0,0,0,0}));
-			}
-			dnsQuery.addRecord(question, Section.QUESTION);
-			
-			byte [] query = dnsQuery.toWire();
-			sendToDNS(query);
-			
+			sendQuery(clientPkt, currentTime);
 			lastPacketSent = currentTime;
+			streaming = downstreamBusy || scheduler.hasReady() || (!clientPkt.isNoOp() && !clientPkt.isSpecial());
 		}
 		
 		timeoutConnections();
+		returnWarmConnections(currentTime);
+		
+		if (nothingToSend) {
+			return clientOpts.interval;
+		}
 		
 		//just in case we get a really crazy underflow somehow
+		long timeToWait = lastPacketSent + (streaming ? pacer.getSendGap() : clientOpts.interval) - currentTime; 
 		int maxTimeToWait = Math.min((int)timeToWait, clientOpts.interval);
+		if (inFlight.size() >= window) {
+			//an answer wakes us up sooner, otherwise the oldest query times out
+			maxTimeToWait = (int)Math.max(maxTimeToWait, inFlight.getOldestSentTime() + QUERY_TIMEOUT - currentTime);
+		}
 		maxTimeToWait = Math.max(0, maxTimeToWait);
 		return (int)maxTimeToWait;
 	}
+	
+	private void sendQuery(ClientPacket clientPkt, long currentTime) throws IOException {
+		clientPkt.updateChecksum();
+		Log.get().println(Log.LEVEL_SPAM, "Sent: " + clientPkt);
+		
+		byte [] symbols = clientPkt.encodeAsLabelSymbols();
+		if (DNSWire.nameLength(symbols.length, domainWire) > DNSSizes.MAX_DOMAIN_LEN) {
+			throw new ProtocolException("Name too long");
+		}
+		int queryType = clientOpts.queryType == ClientOptions.TXT_QUERIES ? DNSWire.TYPE_TXT : DNSWire.TYPE_CNAME;
+		
+		int id = (dnsPacketId++) & 0xffff;
+		queryBuffer.clear();
+		DNSWire.writeQuery(queryBuffer, id, symbols, domainWire, queryType, clientOpts.ednsSize);
+		DNSServer dns = chooseDNSServer(currentTime, null);
+		byte [] query = null;
+		if (!clientPkt.isNoOp() && dnsSocks.size() > 1) {
+			query = new byte [queryBuffer.position()];
+			System.arraycopy(queryBuffer.array(), 0, query, 0, query.length);
+		}
+		inFlight.sent(id, currentTime, clientPkt.isNoOp(), dns, query);
+		queryBuffer.flip();
+		sendToDNS(dns, queryBuffer);
+		hedgeTokens = Math.min(MAX_HEDGE_BURST, hedgeTokens + HEDGE_BUDGET);
+	}
+	
+	/**
+	 * Sends data queries that are taking unusually long again through another
+	 * dns server, whichever answer comes first is used. This cuts the long
+	 * tail of slow answers that holds up the sliding window, within a budget
+	 * of HEDGE_BUDGET extra queries.
+	 */
+	private void hedgeSlowQueries(long currentTime) throws IOException {
+		if (dnsSocks.size() < 2 || hedgeTokens < 1) {
+			return;
+		}
+		slow.clear();
+		inFlight.findSlow(currentTime, HEDGE_PERCENTILE, slow);
+		for (InFlightQueries.InFlightQuery original : slow) {
+			if (hedgeTokens < 1) {
+				break;
+			}
+			DNSServer dns = chooseDNSServer(currentTime, original.dns);
+			if (dns == original.dns) {
+				continue;
+			}
+			hedgeTokens--;
+			
+			int id = (dnsPacketId++) & 0xffff;
+			byte [] query = original.query.clone();
+			ByteBuffer.wrap(query).putShort(DNSWire.OFFSET_ID, (short) id);
+			Log.get().println(Log.LEVEL_SPAM, "Hedging slow query " + original.id + " through " + dns.getTarget() + " as " + id);
+			inFlight.hedged(original, id, currentTime, dns);
+			sendToDNS(dns, ByteBuffer.wrap(query));
+		}
+	}
 
 	private ClientPacket getNextDataPacket() throws IOException {
-		ClientPacket clientPkt = null;
-		//if there were no pending connections then send some data
+		//connections with data waiting take turns by bytes sent
+		ClientPacket clientPkt = scheduler.nextPacket();
+		if (clientPkt != null) {
+			return clientPkt;
+		}
+		//otherwise poll the connections in turn, they may have acks or resends due
 		for (int i=0; i<this.connections.size(); i++) {
 			//iterate through the connections
 			lastConnectionUsed = (lastConnectionUsed + 1) % this.connections.size();
 			ConnectionState connectionState = connections.get(lastConnectionUsed);
+			//idle warm connections only send keepalives
+			if (pool != null && pool.isIdle(connectionState) && connectionState.isQuiet()) {
+				continue;
+			}
 			//the state can return null if the packet would have been a repeat
 			clientPkt = (ClientPacket) connectionState.update();
 			if (clientPkt != null) {
@@ -290,9 +505,14 @@ public class Client implements PortCommunicatorListener {
 		return clientPkt;
 	}
 
+	/**
+	 * @return the next connection request due, or a batch of them when several
+	 *         tcp connections are waiting and the server takes batches
+	 */
 	private ClientPacket getNextPendingConnectionPacket() {
 		ClientPacket clientPkt = null;
 		synchronized (pendingConnections) {
+			ArrayList<PendingConnection> batch = null;
 			Iterator<PendingConnection> iter = pendingConnections.iterator();
 			while (iter.hasNext()) {
 				PendingConnection pending = iter.next();
@@ -301,42 +521,97 @@ public class Client implements PortCommunicatorListener {
 					if (pending.increaseRetries() == MAX_CONNECTION_RETRIES) {
 						Log.get().println(Log.LEVEL_INFO, "Connection request cancelled.");
 						pending.cancel();
+						if (pending.isPooled()) {
+							pool.requestFailed();
+						} else if (pending.isMultiplexed()) {
+							closeMuxWaiting();
+						}
 						iter.remove();
 					} else {
-						clientPkt = pending.getRequestForSending();
-						break;
+						//a tcp connection's first bytes can go with the request
+						if (serverTakesEarlyData && pending.isTCP() && !pending.isMultiplexed()) {
+							pending.takeEarlyData(earlyDataRoom, clientOpts.clientEnc);
+						}
+						if (!serverTakesBatches || !pending.isTCP() || pending.hasEarlyData()) {
+							//sent on its own, unless a batch has been started
+							if (batch == null) {
+								clientPkt = pending.getRequestForSending();
+								break;
+							}
+							continue;
+						}
+						if (batch == null) {
+							batch = new ArrayList<PendingConnection>();
+						}
+						batch.add(pending);
+						if (batch.size() == maxBatch) {
+							break;
+						}
 					}
 				}
 			}
+			
+			if (batch != null && batch.size() == 1) {
+				clientPkt = batch.get(0).getRequestForSending();
+			} else if (batch != null) {
+				clientPkt = createBatchRequest(batch);
+			}
 		}
 		return clientPkt;
 	}
+	
+	private ConnectionBatchRequestClientPacket createBatchRequest(List<PendingConnection> batch) {
+		int [] challengeIds = new int [batch.size()];
+		int [] flags = new int [batch.size()];
+		for (int i=0; i<batch.size(); i++) {
+			ConnectionRequestClientPacket request = batch.get(i).getRequestForSending();
+			challengeIds[i] = request.getChallengeId();
+			flags[i] = request.getRequestFlags();
+		}
+		Log.get().println(Log.LEVEL_SPAM, "Requesting a batch of " + batch.size() + " connections.");
+		ConnectionBatchRequestClientPacket request = new ConnectionBatchRequestClientPacket(
+				0, getLateTimerMillis(clientOpts.interval), (short)clientOpts.truncationAllowance,
+				clientOpts.window, challengeIds, flags, batch.size());
+		//the encoding is self describing, the server reads it whatever we pick
+		request.setEncodingBase(clientOpts.clientEnc);
+		return request;
+	}
 
 	/**
 	 * Gives the messages to the connection streams
 	 * @throws SocketException
 	 */
 	private void handOutCollectedMessages() throws SocketException {
+		//taken off the queue first, the connections lock their communicators 
+		//which wake us up through the scheduler while holding their own lock
 		synchronized (dnsMessages) {
 			while (!dnsMessages.isEmpty()) {
-				ServerPacket pktReceived = (ServerPacket) dnsMessages.removeFirst();
-				if (!pktReceived.isChecksumValid()) {
-					Log.get().println(Log.LEVEL_SPAM, "Packet had bad checksum.");
-					continue;
-				}
-				
-				Log.get().println(Log.LEVEL_SPAM, "Received: " + pktReceived.toString());
-				
-				if (pktReceived.isSpecial()) {
-					handleSpecialPacket((SpecialServerPacket)pktReceived);
-				}
-				for (ConnectionState conn : connections) {
-					if (conn.getClientId() == pktReceived.getClientID()) {
-						conn.dnsPacketReceived(pktReceived);
+				received.add((ServerPacket) dnsMessages.removeFirst());
+			}
+		}
+		for (ServerPacket pktReceived : received) {
+			if (!pktReceived.isChecksumValid()) {
+				Log.get().println(Log.LEVEL_SPAM, "Packet had bad checksum.");
+				continue;
+			}
+			
+			Log.get().println(Log.LEVEL_SPAM, "Received: " + pktReceived.toString());
+			downstreamBusy = !pktReceived.isNoOp() && !pktReceived.isSpecial();
+			
+			if (pktReceived.isSpecial()) {
+				handleSpecialPacket((SpecialServerPacket)pktReceived);
+			}
+			for (ConnectionState conn : connections) {
+				if (conn.getClientId() == pktReceived.getClientID()) {
+					conn.dnsPacketReceived(pktReceived);
+					//ask for more of what the server is sending, or send what the ack made room for
+					if (!pktReceived.isNoOp() || conn.hasDataWaiting()) {
+						scheduler.markReady(conn);
 					}
 				}
 			}
 		}
+		received.clear();
 	}
 
 	private void timeoutConnections() {
@@ -351,76 +626,80 @@ public class Client implements PortCommunicatorListener {
 				}
 				client.close();
 				connections.remove(client);
+				connectionRemoved(client);
 			}
 		}
 	}
 
-	private void sendToDNS(byte[] query) throws SocketException, IOException {
-		DNSServer dns = dnsSocks.get(dnsIndex);
-		dns.getSocket().send(new DatagramPacket(query, query.length, dns.getTarget()));
-		dnsIndex = (dnsIndex + 1) % dnsSocks.size();
-	}
-
-	private void handleSpecialPacket(SpecialServerPacket pktReceived) throws SocketException {
-		switch (pktReceived.getType()) {
-		case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_ACCEPTED:
-			ConnectionAcceptedServerPacket conAcc = (ConnectionAcceptedServerPacket) pktReceived;
-			PendingConnection requestAccepted = null;
-			
-			synchronized (pendingConnections) {
-				Iterator<PendingConnection> pendingIter = pendingConnections.iterator();
-				while (pendingIter.hasNext()) {
-					PendingConnection pc = pendingIter.next();
-					if (pc.getChallengeId() == conAcc.getChallengeId()) {
-						pendingIter.remove();
-						requestAccepted = pc;
+	/**
+	 * Picks a dns server at random, weighted towards the fast ones that 
+	 * rarely lose queries. Servers out of use get a single query once their
+	 * cooldown is over, to see if they have recovered.
+	 * @param avoid a server not to pick unless it is the only choice, may be null
+	 */
+	private DNSServer chooseDNSServer(long currentTime, DNSServer avoid) {
+		double totalWeight = 0;
+		for (DNSServer dns : dnsSocks) {
+			if (dns == avoid) {
+				continue;
+			}
+			ResolverHealth health = dns.getHealth();
+			if (health.isDueForRetry(currentTime)) {
+				health.sent(currentTime);
+				return dns;
+			}
+			if (health.isUsable()) {
+				totalWeight += health.getWeight();
+			}
+		}
+		
+		if (totalWeight > 0) {
+			double pick = dnsRand.nextDouble() * totalWeight;
+			DNSServer lastUsable = null;
+			for (DNSServer dns : dnsSocks) {
+				ResolverHealth health = dns.getHealth();
+				if (dns != avoid && health.isUsable()) {
+					lastUsable = dns;
+					pick -= health.getWeight();
+					if (pick < 0) {
 						break;
 					}
 				}
 			}
-			if (requestAccepted == null) {
-				return;
+			if (lastUsable != null) {
+				return lastUsable;
 			}
+		}
+		
+		//every server is out of use and waiting on its retry, take turns
+		DNSServer dns = dnsSocks.get(dnsIndex);
+		dnsIndex = (dnsIndex + 1) % dnsSocks.size();
+		return dns;
+	}
+	
+	private void dnsFailed(DNSServer dns, long currentTime) {
+		if (dns.getHealth().failed(currentTime)) {
+			Log.get().println(Log.LEVEL_WARN, "DNS server " + dns.getTarget() + " taken out of use for a while (" + dns.getHealth() + ")");
+		}
+	}
 
-			PortCommunicator comm;
-			ConnectionState connectionState;
-			
-			if (requestAccepted.isTCP()) {
-				comm = new TCPPortCommunicator(requestAccepted.getSocket());
-
-				connectionState = new ConnectionState(
-						conAcc.getClientID(), 
-						new LZMAPacketConverter(),
-						new ClientPacketFactory(clientOpts.domain, clientOpts.clientEnc),
-						comm,
-						getLateTimerMillis(clientOpts.interval),
-						true);
-
-				//critical that this starts AFTER the connectionState is constructed
-				comm.start();
-				Log.get().println(Log.LEVEL_INFO, "TCP Connection established (clientID:" + (conAcc.getClientID()&0xFFFF) + ")");
-			} else {
-				udpCommunicator.setMtu(conAcc.getMaxMTU());
-				comm = udpCommunicator;
-				//this comm is already started
-				udpCommunicator.removeListener(this);
-				udpCommunicator = null;
-
-				
-				connectionState = new ConnectionState(
-						conAcc.getClientID(), 
-						new LZMAPacketConverter(),
-						new ClientPacketFactory(clientOpts.domain, Packet.ENC_FULL63),
-						comm,
-						getLateTimerMillis(clientOpts.interval),
-						true);
+	private void sendToDNS(DNSServer dns, ByteBuffer query) throws IOException {
+		//the socket is non-blocking, a full send buffer loses the query like the network would
+		if (dns.getChannel().send(query, dns.getTarget()) == 0) {
+			Log.get().println(Log.LEVEL_SPAM, "DNS send buffer full, query dropped.");
+		}
+	}
 
-				
-				Log.get().println(Log.LEVEL_INFO, "UDP Connection established (clientID:" + (conAcc.getClientID()&0xFFFF) + " mtu: " + conAcc.getMaxMTU() + ")");
+	private void handleSpecialPacket(SpecialServerPacket pktReceived) throws SocketException {
+		switch (pktReceived.getType()) {
+		case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_ACCEPTED:
+			connectionAccepted((ConnectionAcceptedServerPacket) pktReceived);
+			break;
+		case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_BATCH_ACCEPTED:
+			ConnectionBatchAcceptedServerPacket batchAcc = (ConnectionBatchAcceptedServerPacket) pktReceived;
+			for (int i=0; i<batchAcc.getCount(); i++) {
+				connectionAccepted(batchAcc.getAccept(i));
 			}
-				
-			
-			connections.add(connectionState);
 			break;
 		case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_CLOSED:
 			for (int i=0; i<connections.size(); i++) {
@@ -428,6 +707,7 @@ public class Client implements PortCommunicatorListener {
 				if (connection.getClientId() == pktReceived.getClientID()) {
 					connection.close();
 					connections.remove(i);
+					connectionRemoved(connection);
 					break;
 				}
 			}
@@ -435,6 +715,196 @@ public class Client implements PortCommunicatorListener {
 		}
 	}
 
+	private void connectionAccepted(ConnectionAcceptedServerPacket conAcc) throws SocketException {
+		PendingConnection requestAccepted = null;
+		
+		synchronized (pendingConnections) {
+			Iterator<PendingConnection> pendingIter = pendingConnections.iterator();
+			while (pendingIter.hasNext()) {
+				PendingConnection pc = pendingIter.next();
+				if (pc.getChallengeId() == conAcc.getChallengeId()) {
+					pendingIter.remove();
+					requestAccepted = pc;
+					break;
+				}
+			}
+		}
+		if (requestAccepted == null) {
+			return;
+		}
+
+		PortCommunicator comm;
+		ConnectionState connectionState;
+		Socket tcpSocket = requestAccepted.getSocket();
+		boolean multiplexed = (conAcc.getAcceptFlags() & ConnectionAcceptedServerPacket.FLAG_MULTIPLEX) != 0;
+		serverTakesEarlyData = (conAcc.getAcceptFlags() & ConnectionAcceptedServerPacket.FLAG_EARLY_DATA) != 0;
+		serverTakesBatches = (conAcc.getAcceptFlags() & ConnectionAcceptedServerPacket.FLAG_BATCH) != 0;
+		//older servers use 8 bit packet ids and the small window
+		boolean wideIds = (conAcc.getAcceptFlags() & ConnectionAcceptedServerPacket.FLAG_WIDE_IDS) != 0 && conAcc.getWindowSize() > 0;
+		int window = wideIds ? conAcc.getWindowSize() : ConnectionState.WINDOW_SIZE;
+		if (requestAccepted.hasEarlyData() && !serverTakesEarlyData) {
+			//the server changed under us, the connection can't be used without its first bytes
+			Log.get().println(Log.LEVEL_WARN, "The server dropped a connection's early data, closing it.");
+			requestAccepted.cancel();
+			return;
+		}
+		
+		if (requestAccepted.isPooled() && !multiplexed) {
+			//the server connected a socket for nobody, it will time out
+			Log.get().println(Log.LEVEL_WARN, "Server can't multiplex, no warm connections are kept.");
+			synchronized (pendingConnections) {
+				muxUnsupported = true;
+			}
+			pool.requestFailed();
+			return;
+		}
+		
+		if (requestAccepted.isMultiplexed() && !multiplexed) {
+			//the server is too old to multiplex and connected a single socket
+			tcpSocket = fallBackFromMultiplexing();
+			if (tcpSocket == null) {
+				return;
+			}
+		}
+		
+		if (requestAccepted.isMultiplexed() && multiplexed) {
+			MuxPortCommunicator muxComm = new MuxPortCommunicator(null);
+			comm = muxComm;
+			
+			connectionState = new ConnectionState(
+					conAcc.getClientID(), 
+					new LZMAPacketConverter(),
+					new ClientPacketFactory(clientOpts.domain, clientOpts.clientEnc, wideIds),
+					comm,
+					getLateTimerMillis(clientOpts.interval),
+					true,
+					window);
+			
+			if (requestAccepted.isPooled()) {
+				pool.add(connectionState, muxComm, System.currentTimeMillis());
+				Log.get().println(Log.LEVEL_INFO, "Warm connection ready (clientID:" + (conAcc.getClientID()&0xFFFF) + " dns response size: " + conAcc.getEdnsSize() + ")");
+			} else {
+				synchronized (pendingConnections) {
+					mux = muxComm;
+					muxConnection = connectionState;
+					for (Socket socket : muxWaiting) {
+						mux.openStream(socket);
+					}
+					muxWaiting.clear();
+				}
+				Log.get().println(Log.LEVEL_INFO, "Multiplexed Connection established (clientID:" + (conAcc.getClientID()&0xFFFF) + " dns response size: " + conAcc.getEdnsSize() + ")");
+			}
+		} else if (requestAccepted.isTCP()) {
+			comm = new TCPPortCommunicator(tcpSocket);
+
+			connectionState = new ConnectionState(
+					conAcc.getClientID(), 
+					new LZMAPacketConverter(),
+					new ClientPacketFactory(clientOpts.domain, clientOpts.clientEnc, wideIds),
+					comm,
+					getLateTimerMillis(clientOpts.interval),
+					true,
+					window);
+
+			//critical that this starts AFTER the connectionState is constructed
+			comm.start();
+			Log.get().println(Log.LEVEL_INFO, "TCP Connection established (clientID:" + (conAcc.getClientID()&0xFFFF) + " dns response size: " + conAcc.getEdnsSize() + ")");
+		} else {
+			udpCommunicator.setMtu(conAcc.getMaxMTU());
+			comm = udpCommunicator;
+			//this comm is already started
+			udpCommunicator.removeListener(this);
+			udpCommunicator = null;
+
+			
+			connectionState = new ConnectionState(
+					conAcc.getClientID(), 
+					new LZMAPacketConverter(),
+					new ClientPacketFactory(clientOpts.domain, Packet.ENC_FULL63, wideIds),
+					comm,
+					getLateTimerMillis(clientOpts.interval),
+					true,
+					window);
+
+			
+			Log.get().println(Log.LEVEL_INFO, "UDP Connection established (clientID:" + (conAcc.getClientID()&0xFFFF) + " mtu: " + conAcc.getMaxMTU() + " dns response size: " + conAcc.getEdnsSize() + ")");
+		}
+			
+		
+		connectionState.setSelectiveAcks((conAcc.getAcceptFlags() & ConnectionAcceptedServerPacket.FLAG_SACK) != 0);
+		connections.add(connectionState);
+		scheduler.addConnection(connectionState, comm, FairScheduler.DEFAULT_WEIGHT);
+		scheduler.markReady(connectionState);
+	}
+
+	/**
+	 * The server accepted a multiplexed connection without multiplexing it.
+	 * @return the socket to carry on it, the other waiting sockets get their
+	 *         own connections
+	 */
+	private Socket fallBackFromMultiplexing() {
+		Log.get().println(Log.LEVEL_WARN, "Server can't multiplex, every tcp connection gets its own tunnel connection.");
+		synchronized (pendingConnections) {
+			muxUnsupported = true;
+			if (muxWaiting.isEmpty()) {
+				return null;
+			}
+			Socket first = muxWaiting.removeFirst();
+			for (Socket socket : muxWaiting) {
+				requestTCPConnection(socket);
+			}
+			muxWaiting.clear();
+			return first;
+		}
+	}
+	
+	/**
+	 * Asks the server for connections until the warm pool is full.
+	 */
+	private void refillPool() {
+		if (pool == null) {
+			return;
+		}
+		synchronized (pendingConnections) {
+			while (!muxUnsupported && pool.needsConnection()) {
+				ConnectionRequestClientPacket request = newConnectionRequest(0, new Random().nextInt(), ConnectionRequestClientPacket.FLAG_TCP | ConnectionRequestClientPacket.FLAG_MULTI_PACKET | ConnectionRequestClientPacket.FLAG_MULTIPLEX);
+				pendingConnections.add(new PendingConnection(request, null, true));
+				pool.requested();
+			}
+		}
+	}
+	
+	/**
+	 * Warm connections whose socket is done go back in the pool, or are 
+	 * closed if it is full.
+	 */
+	private void returnWarmConnections(long now) {
+		if (pool == null) {
+			return;
+		}
+		pool.returnFinished(now, poolSurplus);
+		for (ConnectionState connection : poolSurplus) {
+			connection.close();
+			connections.remove(connection);
+			connectionRemoved(connection);
+		}
+		poolSurplus.clear();
+	}
+	
+	private void connectionRemoved(ConnectionState connection) {
+		scheduler.removeConnection(connection);
+		if (pool != null) {
+			pool.remove(connection);
+		}
+		synchronized (pendingConnections) {
+			if (connection == muxConnection) {
+				//the next socket asks for a new one
+				mux = null;
+				muxConnection = null;
+			}
+		}
+	}
+
 /*	protected class LocalListenThread extends Thread {
 		DatagramSocket listenSock;
 		
@@ -459,91 +929,179 @@ public class Client implements PortCommunicatorListener {
 		}	
 	}
 */	
-	protected class DNSListenThread extends Thread {
-		private DNSServer dns;
+	/**
+	 * Reads the answers from every dns server's socket on one thread, parsing
+	 * them out of buffers that are reused for every answer.
+	 */
+	protected class DNSReceiveThread extends Thread {
+		//more answers than this in one response are ignored, the server sends far fewer
+		private static final int MAX_ANSWERS = 64;
+		/** max answers read from one socket before giving the others a turn */
+		private static final int MAX_READS_PER_WAKEUP = 64;
+		private Selector selector;
+		private ByteBuffer in;
+		private byte [] symbols;
+		private int [] lengths;
+		private int answerType;
 		
-		public DNSListenThread(DNSServer dns) throws SocketException {
-			super("DNS Listener");
-			this.dns = dns;
+		public DNSReceiveThread(List<DNSServer> servers) throws IOException {
+			super("DNS Receiver");
+			this.selector = Selector.open();
+			for (DNSServer dns : servers) {
+				dns.getChannel().register(selector, SelectionKey.OP_READ, dns);
+			}
+			this.in = ByteBuffer.allocate(clientOpts.ednsSize);
+			this.symbols = new byte[clientOpts.ednsSize];
+			this.lengths = new int[MAX_ANSWERS];
+			this.answerType = clientOpts.queryType == ClientOptions.TXT_QUERIES ? DNSWire.TYPE_TXT : DNSWire.TYPE_CNAME;
 		}
 
 		@Override
 		public void run() {
 			while (true) {
-				DatagramPacket packet = new DatagramPacket(new byte[DNSSizes.MAX_PACKET_SIZE], DNSSizes.MAX_PACKET_SIZE);
 				try {
-					dns.getSocket().receive(packet);
-					Message query = new Message(packet.getData());
+					selector.select();
+				} catch (IOException e) {
+					Log.get().exception(Log.LEVEL_ERROR, e);
+					return;
+				}
 				
-					//System.out.println(query);
-					
-					
-
-					if (!query.getHeader().getFlag(Flags.QR)) {
-						Log.get().println(Log.LEVEL_WARN, "Received a dns query! This is backwards, the client should be getting responses.");
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
 						continue;
 					}
 					
-					if (query.getRcode() != Rcode.NOERROR) {
-						Log.get().println(Log.LEVEL_ERROR, "Received error code from DNS server! " + Rcode.string(query.getRcode()));
-						if (Rcode.NXDOMAIN == query.getRcode()) {
-							Log.get().println(Log.LEVEL_ERROR, "Non-existant domain, it is likely your name servers are configured improperly.");
+					DNSServer dns = (DNSServer) key.attachment();
+					for (int i=0; i<MAX_READS_PER_WAKEUP; i++) {
+						in.clear();
+						try {
+							//nothing left on this socket
+							if (dns.getChannel().receive(in) == null) {
+								break;
+							}
+							in.flip();
+							received(dns, in);
+						} catch (IOException ioe) {
+							Log.get().exception(Log.LEVEL_ERROR, ioe);
 						}
-						continue;
 					}
-					
-					if (query.getHeader().getFlag(Flags.TC)) {
-						Log.get().println(Log.LEVEL_WARN, "Received dns response with truncated flag!");
-						//this should not happen, re init the dns socket
-						//dns.reinitSocket();
-						//continue;
+				}
+			}
+		}
+		
+		private void received(DNSServer dns, ByteBuffer response) throws IOException {
+			if (response.limit() >= DNSWire.HEADER_SIZE) {
+				InFlightQueries.InFlightQuery answered = inFlight.answered(response.getShort(DNSWire.OFFSET_ID) & 0xffff);
+				//an error answer counts against the server further down, not for it
+				int rcode = response.getShort(DNSWire.OFFSET_FLAGS) & DNSWire.MASK_RCODE;
+				if (answered != null && rcode == Rcode.NOERROR) {
+					//polls may be held by the server, their round trips say nothing about the path
+					long rtt = answered.poll ? -1 : System.currentTimeMillis() - answered.sentTime;
+					if (rtt != -1) {
+						pacer.answered(rtt);
 					}
-					
-					Record [] records = query.getSectionArray(Section.ANSWER);
-					if (records == null || records.length == 0) {
-						Log.get().println(Log.LEVEL_ERROR, "Received dns response with no answer! Is the server running?");
-						continue;
+					if (dns.getHealth().answered(rtt)) {
+						Log.get().println(Log.LEVEL_INFO, "DNS server " + dns.getTarget() + " is back in use.");
 					}
-					
-					if (clientOpts.queryType == ClientOptions.TXT_QUERIES) {
-						if (records[0].getType() != Type.TXT) {
-							Log.get().println(Log.LEVEL_ERROR, "Answer not TXT!");
-							continue;
-						}
+				}
+			}
+			
+			//plain answers are read straight off the wire, the server may pack a packet in each
+			int numAnswers = DNSWire.readAnswerSymbols(response, answerType, symbols, lengths);
+			if (numAnswers != -1) {
+				int offset = 0;
+				for (int i=0; i<numAnswers; i++) {
+					byte [] payload;
+					if (answerType == DNSWire.TYPE_TXT) {
+						payload = Packet.decodeTxtSymbols(symbols, offset, lengths[i]);
 					} else {
-						if (records[0].getType() != Type.CNAME) {
-							Log.get().println(Log.LEVEL_ERROR, "Answer not CNAME!");
-							continue;
-						}
-						
+						payload = Packet.decodeLabelSymbols(symbols, offset, lengths[i]);
 					}
-					
-					ServerPacket srvPkt = ServerPacket.decodeServerPacket(records[0]);
-				 	
-					synchronized (dnsMessages) {
-						dnsMessages.add(srvPkt);
-						dnsMessages.notifyAll();
+					offset += lengths[i];
+					received(ServerPacket.decodeServerPacket(payload));
+				}
+				return;
+			}
+			
+			//anything else gets dnsjava, which also explains what went wrong
+			byte [] wire = new byte[response.remaining()];
+			response.get(wire);
+			Message query = new Message(wire);
+
+			if (!query.getHeader().getFlag(Flags.QR)) {
+				Log.get().println(Log.LEVEL_WARN, "Received a dns query! This is backwards, the client should be getting responses.");
+				return;
+			}
+			
+			if (query.getRcode() != Rcode.NOERROR) {
+				Log.get().println(Log.LEVEL_ERROR, "Received error code from DNS server! " + Rcode.string(query.getRcode()));
+				pacer.lost(System.currentTimeMillis());
+				dnsFailed(dns, System.currentTimeMillis());
+				if (Rcode.NXDOMAIN == query.getRcode()) {
+					Log.get().println(Log.LEVEL_ERROR, "Non-existant domain, it is likely your name servers are configured improperly.");
+				}
+				return;
+			}
+			
+			if (query.getHeader().getFlag(Flags.TC)) {
+				//this should not happen, take what made it through
+				Log.get().println(Log.LEVEL_WARN, "Received dns response with truncated flag!");
+			}
+			
+			Record [] records = query.getSectionArray(Section.ANSWER);
+			if (records == null || records.length == 0) {
+				Log.get().println(Log.LEVEL_ERROR, "Received dns response with no answer! Is the server running?");
+				return;
+			}
+			
+			for (int i=0; i<records.length && i<MAX_ANSWERS; i++) {
+				if (clientOpts.queryType == ClientOptions.TXT_QUERIES) {
+					if (records[i].getType() != Type.TXT) {
+						Log.get().println(Log.LEVEL_ERROR, "Answer not TXT!");
+						continue;
 					}
-				} catch (IOException ioe) {
-					Log.get().exception(Log.LEVEL_ERROR, ioe);
+				} else {
+					if (records[i].getType() != Type.CNAME) {
+						Log.get().println(Log.LEVEL_ERROR, "Answer not CNAME!");
+						continue;
+					}
+					
 				}
+				
+				received(ServerPacket.decodeServerPacket(records[i]));
 			}
-		}	
+		}
+		
+		private void received(ServerPacket srvPkt) {
+			synchronized (dnsMessages) {
+				dnsMessages.add(srvPkt);
+				dnsMessages.notifyAll();
+			}
+		}
 	}
 	
+	/**
+	 * @return ms a packet waits for an ack before it is sent again, until the 
+	 *         connection has measured the round trip
+	 */
 	public static int getLateTimerMillis(int interval) {
 		return interval * (ConnectionState.WINDOW_SIZE/2);
 	}
 	
 	public class DNSServer {
 		private InetSocketAddress target;
-		private DatagramSocket sock;
+		/** non-blocking, read by the DNSReceiveThread */
+		private DatagramChannel chan;
+		private ResolverHealth health = new ResolverHealth();
 		
 		public DNSServer() {
 		}
 		
-		public DNSServer(DatagramSocket sock, InetSocketAddress target) {
-			this.sock = sock;
+		public DNSServer(DatagramChannel chan, InetSocketAddress target) {
+			this.chan = chan;
 			this.target = target;
 		}
 		
@@ -551,12 +1109,12 @@ public class Client implements PortCommunicatorListener {
 			return this.target;
 		}
 		
-		public DatagramSocket getSocket() {
-			return this.sock;
+		public DatagramChannel getChannel() {
+			return this.chan;
 		}
 		
-		public synchronized void reinitSocket() throws SocketException {
-			this.sock = new DatagramSocket(0, clientOpts.dnsRequestAddress);
+		public ResolverHealth getHealth() {
+			return this.health;
 		}
 	}
 
@@ -11,6 +11,8 @@ import org.xbill.DNS.ResolverConfig;
 import common.Common;
 import common.CommonCmdLineParser;
 import common.CommonOptions;
+import common.ConnectionState;
+import common.DNSSizes;
 import common.Packet;
 
 public class ClientCmdLineParser extends CommonCmdLineParser {
@@ -19,18 +21,28 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 	private Option dnsServer;
 	private Option dnsRequestAddress;
 	private Option interval;
+	private Option inFlight;
 	private Option truncationAllowance;
 	private Option queryType;
 	private Option clientEnc;
+	private Option multiplex;
+	private Option warmConnections;
+	private Option acceptBacklog;
+	private Option window;
 	
 	public ClientCmdLineParser() {
 		listenAddr = addStringOption("listen-address");
 		listenPort = addIntegerOption("listen-port");
 		dnsServer = addStringOption("dns-server");
 		interval = addIntegerOption("interval");
+		inFlight = addIntegerOption("in-flight");
 		truncationAllowance = addIntegerOption("trunc-bytes");
 		queryType = addStringOption("query-type");
 		clientEnc = addStringOption("client-enc");
+		multiplex = addBooleanOption("multiplex");
+		warmConnections = addIntegerOption("warm-connections");
+		acceptBacklog = addIntegerOption("accept-backlog");
+		window = addIntegerOption("window");
 		
 		//hidden option that probably no one will want to use
 		dnsRequestAddress = addStringOption("dns-request-address");
@@ -48,6 +60,7 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 			result.mtu = commonOpts.mtu;
 			result.logLevel = commonOpts.logLevel;
 			result.logFile = commonOpts.logFile;
+			result.ednsSize = commonOpts.ednsSize;
 			
 			String listenAddrString = (String)getOptionValue(listenAddr);
 			if (listenAddrString != null) {
@@ -78,6 +91,11 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 				result.interval = iInterval;
 			}	
 			
+			Integer iInFlight = (Integer)getOptionValue(inFlight);
+			if (iInFlight != null) {
+				result.inFlight = iInFlight;
+			}
+			
 			Integer iTruncationBytes = (Integer)getOptionValue(truncationAllowance);
 			if (iTruncationBytes == null) {
 				result.truncationAllowance = -1;
@@ -113,6 +131,25 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 				}
 			}
 			
+			Boolean bMultiplex = (Boolean)getOptionValue(multiplex);
+			result.multiplex = bMultiplex != null && bMultiplex;
+			
+			Integer iWarmConnections = (Integer)getOptionValue(warmConnections);
+			if (iWarmConnections == null) {
+				result.warmConnections = -1;
+			} else {
+				result.warmConnections = iWarmConnections;
+			}
+			
+			Integer iAcceptBacklog = (Integer)getOptionValue(acceptBacklog);
+			if (iAcceptBacklog != null) {
+				result.acceptBacklog = iAcceptBacklog;
+			}
+			
+			Integer iWindow = (Integer)getOptionValue(window);
+			if (iWindow != null) {
+				result.window = iWindow;
+			}
 			
 			if (!setDefaults(result)) {
 				return null;
@@ -177,6 +214,23 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 			result.interval = Client.DEFAULT_INTERVAL;
 		}
 		
+		if (result.inFlight <= 0) {
+			result.inFlight = Client.DEFAULT_IN_FLIGHT;
+		}
+		
+		if (result.warmConnections < 0) {
+			result.warmConnections = Client.DEFAULT_WARM_CONNECTIONS;
+		}
+		
+		if (result.acceptBacklog <= 0) {
+			result.acceptBacklog = Client.DEFAULT_ACCEPT_BACKLOG;
+		}
+		
+		if (result.window <= 0) {
+			result.window = Client.DEFAULT_WINDOW;
+		}
+		result.window = Math.min(result.window, ConnectionState.MAX_WINDOW_SIZE);
+		
 		if (result.logLevel < 0) {
 			result.logLevel = Common.DEFAULT_LOGLEVEL;
 		}
@@ -193,6 +247,10 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 			result.clientEnc = common.Packet.ENC_FULL63;
 		}
 		
+		if (result.ednsSize <= 0) {
+			result.ednsSize = DNSSizes.DEFAULT_EDNS_SIZE;
+		}
+		
 		return true;
 		
 	}
@@ -210,6 +268,22 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 		System.err.println("                          Defaults to all addresses.");
 		System.err.println("--interval       time     The delay between sending packets, in milliseconds.");
 		System.err.println("                          Defaults to " + Client.DEFAULT_INTERVAL + ".");
+		System.err.println("--in-flight      count    How many queries may wait on an answer at once. While");
+		System.err.println("                          data is moving a new query goes out as soon as an");
+		System.err.println("                          answer comes back. Defaults to " + Client.DEFAULT_IN_FLIGHT + ".");
+		System.err.println("--multiplex               Carry every tcp connection in one tunnel connection,");
+		System.err.println("                          new connections skip the handshake. Needs a server");
+		System.err.println("                          that supports it.");
+		System.err.println("--warm-connections count  Keep this many tunnel connections set up ahead of");
+		System.err.println("                          time, a new tcp connection takes one instead of");
+		System.err.println("                          waiting on a handshake. Idle ones send a keepalive");
+		System.err.println("                          every " + (WarmPool.KEEPALIVE_INTERVAL / 1000) + " seconds. Not used with --multiplex.");
+		System.err.println("                          Defaults to " + Client.DEFAULT_WARM_CONNECTIONS + ".");
+		System.err.println("--accept-backlog count    How many local tcp connections may wait to be");
+		System.err.println("                          accepted during a burst. Defaults to " + Client.DEFAULT_ACCEPT_BACKLOG + ".");
+		System.err.println("--window         packets  How many packets may be in flight each way on a");
+		System.err.println("                          connection, the server may allow fewer. Servers");
+		System.err.println("                          without 16 bit packet ids use " + ConnectionState.WINDOW_SIZE + ". Defaults to " + Client.DEFAULT_WINDOW + ".");
 		System.err.println("--mtu            bytes    Set the udp maximum MTU. Defaults to " + Common.DEFAULT_MTU + ".");
 		System.err.println("--trunc-bytes    bytes    Tell the server to prevent truncation by sending");
 		System.err.println("                          less data when answering queries. Defaults to " + Client.DEFAULT_TRUNCATION_ALLOWANCE + ".");
@@ -217,6 +291,9 @@ public class ClientCmdLineParser extends CommonCmdLineParser {
 		System.err.println("                          Defaults to TXT. CNAME is much slower.");
 		System.err.println("--client-enc     method   Set the client encoding: base63, base16, hexhack37.");
 		System.err.println("                          Defaults to base63.");
+		System.err.println("--edns-size      bytes    The dns response size to ask for with EDNS0, bigger");
+		System.err.println("                          answers carry more data. Defaults to " + DNSSizes.DEFAULT_EDNS_SIZE + ",");
+		System.err.println("                          " + DNSSizes.MAX_PACKET_SIZE + " turns EDNS0 off.");
 		System.err.println("--log-file       file     Instead of logging to std err, log to this file.");
 		System.err.println("--log-level      0-5      The amount of information to display. Defaults to 3.");
 		System.err.println("                          0: Display nothing.");
@@ -14,7 +14,12 @@ public class ClientOptions extends CommonOptions {
 	public ArrayList<InetAddress> dnsServers;
 	public InetAddress dnsRequestAddress;
 	public int interval;
+	public int inFlight;
 	public int truncationAllowance;
 	public int queryType;
 	public byte clientEnc;
+	public boolean multiplex;
+	public int warmConnections;
+	public int acceptBacklog;
+	public int window;
 }
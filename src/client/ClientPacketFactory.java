@@ -15,10 +15,18 @@ public class ClientPacketFactory implements PacketFactory {
 	private int noOpSequence;
 	/** One of Packet.ENC_ types*/
 	private byte packetBase;
+	/** Packet.FLAG_WIDE_IDS if the connection uses 16 bit packet ids */
+	private byte idFlags;
+	private int idMask;
 	
-	public ClientPacketFactory(String domain, byte packetBase) {
+	/**
+	 * @param wideIds use 16 bit packet ids, the server agreed to them
+	 */
+	public ClientPacketFactory(String domain, byte packetBase, boolean wideIds) {
 		this.packetBase = packetBase;
-		this.bytesPerPacket = ClientPacket.maxDataLength(domain, 0, packetBase) - Packet.FIXED_HEADER_SIZE;
+		this.idFlags = wideIds ? Packet.FLAG_WIDE_IDS : 0;
+		this.idMask = wideIds ? 0xffff : 0xff;
+		this.bytesPerPacket = ClientPacket.maxDataLength(domain, 0, packetBase) - Packet.FIXED_HEADER_SIZE - (wideIds ? Packet.WIDE_IDS_SIZE : 0);
 		noOpRand = new Random();
 		noOpSequence = noOpRand.nextInt();
 	}
@@ -27,14 +35,14 @@ public class ClientPacketFactory implements PacketFactory {
 		byte[] noOpData = new byte[8];
 		noOpRand.nextBytes(noOpData);
 		Packet.writeIntToBytes(noOpData, 0, noOpSequence++);
-		return new ClientPacket(clientId, (byte)0, (byte)Packet.FLAG_NO_OP, packetBase, (byte)0, (byte)0, noOpData);
+		return new ClientPacket(clientId, 0, (byte)(Packet.FLAG_NO_OP | idFlags), packetBase, 0, (byte)0, noOpData);
 	}
 
 	public Packet createPacket(byte[] data, int dataOffset, int dataLen,
-			short clientId, byte packetId, byte flags) {
+			short clientId, int packetId, byte flags) {
 		byte[] dataCopy = new byte[dataLen];
 		System.arraycopy(data, dataOffset, dataCopy, 0, dataLen);
-		return new ClientPacket(clientId, packetId, flags, packetBase, (byte)0, (byte) 0, dataCopy);
+		return new ClientPacket(clientId, packetId & idMask, (byte)(flags | idFlags), packetBase, 0, (byte) 0, dataCopy);
 	}
 
 	public int getMaxPacketSize() {
@@ -44,6 +52,10 @@ public class ClientPacketFactory implements PacketFactory {
 	public Packet createConnectionClosed(short clientId) {
 		return new ConnectionClosedClientPacket(clientId);
 	}
+
+	public boolean hasWideIds() {
+		return idFlags != 0;
+	}
 	
 	
 }
@@ -0,0 +1,171 @@
+package client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import common.ClientPacket;
+import common.ConnectionState;
+import common.Packet;
+import common.PortCommunicator;
+import common.PortCommunicatorListener;
+
+/**
+ * Shares the upstream queries between the connections that have data to
+ * send, by bytes (deficit round robin). Each turn a connection gets a
+ * quantum of bytes times its weight and sends packets until it has used
+ * them up, so a bulk transfer can't crowd out an interactive session that
+ * sends a few small packets. Only connections with data waiting are kept in
+ * the ready queue, so picking the next packet doesn't look at idle ones.
+ */
+public class FairScheduler {
+	/** bytes a connection of weight 1 may send per turn */
+	public static final int QUANTUM = 512;
+	public static final int DEFAULT_WEIGHT = 1;
+
+	private HashMap<ConnectionState, Flow> flows;
+	/** connections with data waiting, in turn order */
+	private LinkedList<Flow> ready;
+	/** notified when a connection becomes ready */
+	private Object wakeup;
+
+	/**
+	 * @param wakeup what the sending thread waits on between queries
+	 */
+	public FairScheduler(Object wakeup) {
+		this.flows = new HashMap<ConnectionState, Flow>();
+		this.ready = new LinkedList<Flow>();
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Starts scheduling a connection. It is marked ready whenever its 
+	 * communicator receives something.
+	 */
+	public synchronized void addConnection(final ConnectionState connection, PortCommunicator comm, int weight) {
+		Flow flow = new Flow(connection, comm, weight);
+		flow.listener = new PortCommunicatorListener() {
+			public void onPacketReceived() {
+				markReady(connection);
+			}
+		};
+		flows.put(connection, flow);
+		comm.addListener(flow.listener);
+	}
+
+	/**
+	 * The connection is dropped from the ready queue the next time it comes up.
+	 */
+	public void removeConnection(ConnectionState connection) {
+		Flow flow;
+		synchronized (this) {
+			flow = flows.remove(connection);
+			if (flow == null) {
+				return;
+			}
+			flow.removed = true;
+		}
+		flow.comm.removeListener(flow.listener);
+	}
+
+	/**
+	 * The connection has something new to send, or should ask the server for
+	 * more of what it is sending. Safe to call from any thread.
+	 */
+	public void markReady(ConnectionState connection) {
+		synchronized (this) {
+			Flow flow = flows.get(connection);
+			if (flow == null) {
+				return;
+			}
+			flow.signaled = true;
+			if (flow.queued) {
+				return;
+			}
+			flow.queued = true;
+			//unused bytes arent saved up while idle, but an overdraw is still paid back
+			flow.deficit = Math.min(flow.deficit, 0);
+			flow.newTurn = true;
+			ready.addLast(flow);
+		}
+		synchronized (wakeup) {
+			wakeup.notifyAll();
+		}
+	}
+
+	public synchronized boolean hasReady() {
+		return !ready.isEmpty();
+	}
+
+	/**
+	 * @return the next packet from the connection whose turn it is, or null
+	 *         if no connection has data waiting
+	 */
+	public ClientPacket nextPacket() throws IOException {
+		while (true) {
+			Flow flow;
+			synchronized (this) {
+				if (ready.isEmpty()) {
+					return null;
+				}
+				flow = ready.getFirst();
+				if (flow.removed) {
+					ready.removeFirst();
+					flow.queued = false;
+					continue;
+				}
+				if (flow.newTurn) {
+					flow.deficit += QUANTUM * flow.weight;
+					flow.newTurn = false;
+				}
+				flow.signaled = false;
+			}
+
+			//outside the lock, the connection's communicator calls markReady with its own lock held
+			ClientPacket pkt = (ClientPacket) flow.connection.update();
+			boolean moreWaiting = flow.connection.hasDataWaiting();
+
+			synchronized (this) {
+				if (pkt != null && !pkt.isNoOp()) {
+					//a packet may overdraw the deficit, it is paid back next turn
+					flow.deficit -= pkt.getDataContent().length + Packet.FIXED_HEADER_SIZE;
+				}
+				//only this method takes flows off the queue, so it is still at the front
+				if (pkt == null || (!moreWaiting && !flow.signaled)) {
+					//nothing left until markReady is called again
+					ready.removeFirst();
+					flow.queued = false;
+				} else if (flow.deficit <= 0) {
+					//used up its turn
+					ready.addLast(ready.removeFirst());
+					flow.newTurn = true;
+				}
+			}
+
+			if (pkt != null) {
+				return pkt;
+			}
+		}
+	}
+
+	private static class Flow {
+		ConnectionState connection;
+		PortCommunicator comm;
+		PortCommunicatorListener listener;
+		int weight;
+		/** bytes left in this turn, negative if the last packet overdrew it */
+		int deficit;
+		/** the deficit gets a new quantum when the flow next comes up */
+		boolean newTurn;
+		boolean queued;
+		/** markReady was called since the flow last sent, keep it queued */
+		boolean signaled;
+		boolean removed;
+
+		Flow(ConnectionState connection, PortCommunicator comm, int weight) {
+			this.connection = connection;
+			this.comm = comm;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The queries sent to the dns servers that haven't been answered yet, keyed
+ * by their dns id. The client keeps several of these going at once so it
+ * isn't held to one packet per round trip. Queries that never get an answer
+ * are given up on after a timeout so their slot can be reused. A slow query
+ * may be hedged: sent again through another server under a new id, the
+ * first of the two answers settles both.
+ */
+public class InFlightQueries {
+	/** in the order they were sent, which is also the order they time out in */
+	private LinkedHashMap<Integer, InFlightQuery> queries;
+	private long answered;
+	private long timedOut;
+	private long hedges;
+
+	public InFlightQueries() {
+		this.queries = new LinkedHashMap<Integer, InFlightQuery>();
+	}
+
+	/**
+	 * @param poll the query carries no data, the server may hold it until it has some
+	 * @param dns where it was sent
+	 * @param query the wire query, kept for hedging. May be null.
+	 */
+	public synchronized void sent(int id, long now, boolean poll, Client.DNSServer dns, byte [] query) {
+		queries.put(id, new InFlightQuery(id, now, poll, dns, query));
+	}
+
+	/**
+	 * Records a second copy of a slow query sent through another server.
+	 */
+	public synchronized void hedged(InFlightQuery original, int id, long now, Client.DNSServer dns) {
+		InFlightQuery hedge = new InFlightQuery(id, now, false, dns, null);
+		hedge.sibling = original;
+		original.sibling = hedge;
+		queries.put(id, hedge);
+		hedges++;
+	}
+
+	/**
+	 * @param percent the percentile of its server's round trips a query must
+	 *        be slower than
+	 * @param slow receives the data queries that are that slow and haven't 
+	 *        been hedged yet, oldest first
+	 */
+	public synchronized void findSlow(long now, int percent, List<InFlightQuery> slow) {
+		for (InFlightQuery query : queries.values()) {
+			if (query.poll || query.sibling != null || query.query == null) {
+				continue;
+			}
+			int delay = query.dns.getHealth().getHedgeDelay(percent);
+			if (delay != -1 && now - query.sentTime > delay) {
+				slow.add(query);
+			}
+		}
+	}
+
+	/**
+	 * Called by the dns listeners for every response.
+	 * @return the query answered, or null if the id wasn't in flight (a
+	 *         duplicate answer, or one that came after we gave up on it)
+	 */
+	public synchronized InFlightQuery answered(int id) {
+		InFlightQuery query = queries.remove(id);
+		if (query != null) {
+			answered++;
+			//the other copy's answer, if it ever comes, isn't needed
+			if (query.sibling != null && queries.get(query.sibling.id) == query.sibling) {
+				queries.remove(query.sibling.id);
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Gives up on queries sent more than timeout ms ago.
+	 * @param expired receives the queries given up on
+	 */
+	public synchronized void expire(long now, int timeout, List<InFlightQuery> expired) {
+		Iterator<InFlightQuery> iter = queries.values().iterator();
+		while (iter.hasNext()) {
+			InFlightQuery query = iter.next();
+			if (now - query.sentTime < timeout) {
+				break;
+			}
+			iter.remove();
+			expired.add(query);
+			timedOut++;
+		}
+	}
+
+	/**
+	 * @return when the oldest query in flight was sent, or -1 if there are none
+	 */
+	public synchronized long getOldestSentTime() {
+		if (queries.isEmpty()) {
+			return -1;
+		}
+		return queries.values().iterator().next().sentTime;
+	}
+
+	public synchronized int size() {
+		return queries.size();
+	}
+
+	public synchronized long getAnswered() {
+		return answered;
+	}
+
+	public synchronized long getTimedOut() {
+		return timedOut;
+	}
+
+	public synchronized long getHedges() {
+		return hedges;
+	}
+
+	public static class InFlightQuery {
+		public int id;
+		public long sentTime;
+		public boolean poll;
+		public Client.DNSServer dns;
+		/** the wire query, null for polls and hedges */
+		public byte [] query;
+		/** the other copy of a hedged query */
+		public InFlightQuery sibling;
+
+		InFlightQuery(int id, long sentTime, boolean poll, Client.DNSServer dns, byte [] query) {
+			this.id = id;
+			this.sentTime = sentTime;
+			this.poll = poll;
+			this.dns = dns;
+			this.query = query;
+		}
+	}
+}
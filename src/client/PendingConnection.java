@@ -1,8 +1,8 @@
 package client;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.Random;
 
 import common.ConnectionRequestClientPacket;
 
@@ -11,24 +11,69 @@ public class PendingConnection {
 	private long timeLastAsked;
 	private Socket socket;
 	private int retries;
+	/** the socket was read for early data, retries send the same bytes */
+	private boolean earlyDataTaken;
+	
+	/** the connection goes in the warm pool */
+	private boolean pooled;
 	
 	public PendingConnection(ConnectionRequestClientPacket request, Socket socket) {
+		this(request, socket, false);
+	}
+	
+	public PendingConnection(ConnectionRequestClientPacket request, Socket socket, boolean pooled) {
 		this.request = request;
 		this.timeLastAsked = 0;
 		this.socket = socket;
 		this.retries = 0;
+		this.pooled = pooled;
 	}
 
 	public boolean hasBeenRequested(int reaskTimeout) {
 		return (System.currentTimeMillis() - timeLastAsked) > reaskTimeout;
 	}
 
+	/**
+	 * Retries keep the challenge id, if the accept was lost the server 
+	 * recognises the retry and answers with the connection it already made
+	 * instead of connecting again and replaying the early data.
+	 */
 	public ConnectionRequestClientPacket getRequestForSending() {
-		request.setChallengeId(new Random().nextInt());
 		timeLastAsked = System.currentTimeMillis();
 		return request;
 	}
 
+	/**
+	 * Moves what the socket has received so far into the request, so the
+	 * server can hand it to the forward side as it connects. Only done
+	 * before the first request, the data is read off the socket.
+	 * @param encodingType the request is sent with this encoding, it fits more than the default
+	 */
+	public void takeEarlyData(int maxLength, byte encodingType) {
+		if (earlyDataTaken || socket == null) {
+			return;
+		}
+		earlyDataTaken = true;
+		try {
+			InputStream in = socket.getInputStream();
+			int available = Math.min(in.available(), maxLength);
+			if (available <= 0) {
+				return;
+			}
+			byte [] data = new byte [available];
+			int len = in.read(data, 0, available);
+			if (len > 0) {
+				request.setEarlyData(data, 0, len);
+				request.setEncodingBase(encodingType);
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	public boolean hasEarlyData() {
+		return request.getEarlyData() != null;
+	}
+
 	public long getTimeLastAsked() {
 		return timeLastAsked;
 	}
@@ -37,6 +82,17 @@ public class PendingConnection {
 		return (request.getRequestFlags() & ConnectionRequestClientPacket.FLAG_TCP) != 0;
 	}
 
+	public boolean isPooled() {
+		return pooled;
+	}
+
+	public boolean isMultiplexed() {
+		return (request.getRequestFlags() & ConnectionRequestClientPacket.FLAG_MULTIPLEX) != 0;
+	}
+
+	/**
+	 * @return the socket to connect, null for udp and multiplexed connections
+	 */
 	public Socket getSocket() {
 		return socket;
 	}
@@ -46,6 +102,9 @@ public class PendingConnection {
 	}
 	
 	public void cancel() {
+		if (socket == null) {
+			return;
+		}
 		try {
 			socket.close();
 		} catch (IOException e) {
@@ -58,7 +117,7 @@ public class PendingConnection {
 	 */
 	public int increaseRetries() {
 		//abort early if the socket was closed
-		if (socket.isClosed()) {
+		if (socket != null && socket.isClosed()) {
 			return 999;
 		}
 		return ++retries;
@@ -0,0 +1,90 @@
+package client;
+
+/**
+ * Decides how fast the client sends queries while data is moving, the same
+ * way tcp does: the number of queries allowed in flight grows by one every
+ * round trip while answers come back on time, and is halved when queries
+ * time out, the resolver returns errors or packets have to be sent again.
+ * Queries in flight are also spread over the round trip instead of going
+ * out in bursts, resolvers are quick to rate limit bursts.
+ */
+public class QueryPacer {
+	public static final int INITIAL_WINDOW = 2;
+	public static final double DECREASE_FACTOR = 0.5;
+	/** weight of a new rtt sample in the smoothed rtt */
+	public static final double RTT_GAIN = 0.125;
+	/** answers slower than this many smoothed rtts don't grow the window */
+	public static final int LATE_ANSWER_RTTS = 2;
+
+	private int maxWindow;
+	private double window;
+	/** smoothed round trip time in ms, -1 until the first answer */
+	private double srtt;
+	private long lastDecrease;
+	private long losses;
+
+	/**
+	 * @param maxWindow the most queries ever allowed in flight
+	 */
+	public QueryPacer(int maxWindow) {
+		this.maxWindow = maxWindow;
+		this.window = Math.min(INITIAL_WINDOW, maxWindow);
+		this.srtt = -1;
+	}
+
+	/**
+	 * An answer came back for a query carrying data.
+	 * @param rtt ms between sending the query and getting the answer
+	 */
+	public synchronized void answered(long rtt) {
+		boolean onTime = srtt < 0 || rtt <= srtt * LATE_ANSWER_RTTS;
+		if (srtt < 0) {
+			srtt = rtt;
+		} else {
+			srtt += RTT_GAIN * (rtt - srtt);
+		}
+		if (onTime) {
+			//one more query per window's worth of answers
+			window = Math.min(maxWindow, window + 1 / window);
+		}
+	}
+
+	/**
+	 * A query timed out, got an error back or a packet had to be sent again.
+	 * Only the first loss of a round trip counts, the rest are usually the
+	 * same congestion.
+	 */
+	public synchronized void lost(long now) {
+		losses++;
+		if (now - lastDecrease < Math.max(srtt, 0)) {
+			return;
+		}
+		lastDecrease = now;
+		window = Math.max(1, window * DECREASE_FACTOR);
+	}
+
+	/**
+	 * @return how many queries may be in flight right now
+	 */
+	public synchronized int getWindow() {
+		return (int) window;
+	}
+
+	/**
+	 * @return ms to leave between queries so the window is spread over a round trip
+	 */
+	public synchronized int getSendGap() {
+		if (srtt < 0) {
+			return 0;
+		}
+		return (int) (srtt / window);
+	}
+
+	public synchronized int getSmoothedRTT() {
+		return (int) srtt;
+	}
+
+	public synchronized long getLosses() {
+		return losses;
+	}
+}
@@ -0,0 +1,166 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * How well one dns server has been answering: smoothed round trip time,
+ * recent round trips for percentiles and a smoothed loss rate counting
+ * timeouts and errors. A server that keeps failing is taken out of use for
+ * a while (a circuit breaker) and then tried again with a single query.
+ */
+public class ResolverHealth {
+	/** weight of a new sample in the smoothed rtt and loss rate */
+	public static final double GAIN = 0.125;
+	/** round trips kept for percentiles */
+	public static final int RTT_SAMPLES = 32;
+	/** assumed round trip time before a server has answered anything, in ms */
+	public static final int DEFAULT_RTT = 200;
+	/** failures in a row that take a server out of use */
+	public static final int BREAKER_FAILURES = 5;
+	/** ms a server is out of use the first time, doubled each time the retry fails */
+	public static final int BREAKER_COOLDOWN = 2000;
+	public static final int MAX_BREAKER_COOLDOWN = 60000;
+	/** round trips needed before the percentiles are trusted for hedging */
+	public static final int MIN_HEDGE_SAMPLES = 8;
+
+	private double srtt;
+	private double lossRate;
+	private int [] rtts;
+	private int numRtts;
+	private int nextRtt;
+	private int failuresInARow;
+	/** 0 while in use, otherwise when the server may be tried again */
+	private long openUntil;
+	private int cooldown;
+	/** a retry query is out, the breaker stays half open until it is answered */
+	private boolean probing;
+	private long answered;
+	private long failed;
+
+	public ResolverHealth() {
+		this.srtt = -1;
+		this.rtts = new int [RTT_SAMPLES];
+		this.cooldown = BREAKER_COOLDOWN;
+	}
+
+	/**
+	 * @param rtt the round trip in ms, or -1 if it doesn't measure the path
+	 *        (the server may have held the query)
+	 * @return true if this put the server back in use
+	 */
+	public synchronized boolean answered(long rtt) {
+		answered++;
+		lossRate += GAIN * (0 - lossRate);
+		failuresInARow = 0;
+		boolean recovered = openUntil != 0;
+		if (recovered) {
+			openUntil = 0;
+			probing = false;
+			cooldown = BREAKER_COOLDOWN;
+		}
+
+		if (rtt >= 0) {
+			if (srtt < 0) {
+				srtt = rtt;
+			} else {
+				srtt += GAIN * (rtt - srtt);
+			}
+			rtts[nextRtt] = (int) rtt;
+			nextRtt = (nextRtt + 1) % rtts.length;
+			numRtts = Math.min(numRtts + 1, rtts.length);
+		}
+		return recovered;
+	}
+
+	/**
+	 * A query timed out or got an error back.
+	 * @return true if this took the server out of use
+	 */
+	public synchronized boolean failed(long now) {
+		failed++;
+		lossRate += GAIN * (1 - lossRate);
+		failuresInARow++;
+		if (probing) {
+			//the retry failed too, wait longer next time
+			probing = false;
+			cooldown = Math.min(cooldown * 2, MAX_BREAKER_COOLDOWN);
+			openUntil = now + cooldown;
+			return true;
+		}
+		if (openUntil == 0 && failuresInARow >= BREAKER_FAILURES) {
+			openUntil = now + cooldown;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized boolean isUsable() {
+		return openUntil == 0;
+	}
+
+	/**
+	 * @return true if the server is out of use but its cooldown is over, one
+	 *         query should be sent to see if it has recovered
+	 */
+	public synchronized boolean isDueForRetry(long now) {
+		return openUntil != 0 && !probing && now >= openUntil;
+	}
+
+	/**
+	 * Called when a query is sent to the server.
+	 */
+	public synchronized void sent(long now) {
+		if (isDueForRetry(now)) {
+			probing = true;
+		}
+	}
+
+	/**
+	 * @return how much traffic the server should get compared to the others,
+	 *         fast servers that rarely lose queries get the most
+	 */
+	public synchronized double getWeight() {
+		int latency = Math.max(1, getPercentile(90));
+		return Math.max(0.01, 1 - lossRate) / latency;
+	}
+
+	/**
+	 * @param percent 0 to 100
+	 * @return the round trip time that percent of recent answers came back in,
+	 *         DEFAULT_RTT if there aren't any yet
+	 */
+	public synchronized int getPercentile(int percent) {
+		if (numRtts == 0) {
+			return DEFAULT_RTT;
+		}
+		int [] sorted = Arrays.copyOf(rtts, numRtts);
+		Arrays.sort(sorted);
+		int index = Math.min(numRtts - 1, (numRtts * percent) / 100);
+		return sorted[index];
+	}
+
+	/**
+	 * @return ms after which a query to this server is slower than the given
+	 *         percent of recent answers, or -1 if there are too few to tell
+	 */
+	public synchronized int getHedgeDelay(int percent) {
+		if (numRtts < MIN_HEDGE_SAMPLES) {
+			return -1;
+		}
+		return getPercentile(percent);
+	}
+
+	public synchronized int getSmoothedRTT() {
+		return srtt < 0 ? DEFAULT_RTT : (int) srtt;
+	}
+
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "srtt:" + getSmoothedRTT() + "ms p50:" + getPercentile(50) + "ms p90:" + getPercentile(90) +
+			"ms loss:" + (int) (lossRate * 100) + "% answered:" + answered + " failed:" + failed + (openUntil != 0 ? " OUT OF USE" : "");
+	}
+}
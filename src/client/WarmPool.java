@@ -0,0 +1,155 @@
+package client;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import common.ConnectionState;
+import common.MuxPortCommunicator;
+
+/**
+ * Tunnel connections set up ahead of time, so an accepted socket starts
+ * moving data right away instead of waiting on a connection request. Each
+ * is a multiplexed connection carrying at most one socket at a time: the
+ * server only connects to the forward address when the socket's stream is
+ * opened. Once the socket is done the connection goes back in the pool.
+ * Idle ones only send a keepalive now and then.
+ */
+public class WarmPool {
+	/** ms between keepalives for an idle connection, the server gives up after Common.CONN_TIMEOUT */
+	public static final int KEEPALIVE_INTERVAL = 15000;
+
+	private int size;
+	private LinkedList<WarmConnection> idle;
+	private ArrayList<WarmConnection> bound;
+	/** requests sent for new connections that haven't been answered */
+	private int requested;
+
+	/**
+	 * @param size how many idle connections to keep
+	 */
+	public WarmPool(int size) {
+		this.size = size;
+		this.idle = new LinkedList<WarmConnection>();
+		this.bound = new ArrayList<WarmConnection>();
+	}
+
+	/**
+	 * @return true if another connection should be requested, the caller
+	 *         must then call requested()
+	 */
+	public synchronized boolean needsConnection() {
+		return idle.size() + requested < size;
+	}
+
+	public synchronized void requested() {
+		requested++;
+	}
+
+	/**
+	 * A request was given up on or answered without a usable connection.
+	 */
+	public synchronized void requestFailed() {
+		requested = Math.max(0, requested - 1);
+	}
+
+	public synchronized void add(ConnectionState connection, MuxPortCommunicator mux, long now) {
+		requested = Math.max(0, requested - 1);
+		idle.add(new WarmConnection(connection, mux, now));
+	}
+
+	/**
+	 * Carries the socket on an idle connection.
+	 * @return false if there are none
+	 */
+	public synchronized boolean bind(Socket socket) {
+		if (idle.isEmpty()) {
+			return false;
+		}
+		WarmConnection warm = idle.removeFirst();
+		warm.mux.openStream(socket);
+		bound.add(warm);
+		return true;
+	}
+
+	/**
+	 * @return true if the connection is in the pool waiting for a socket
+	 */
+	public synchronized boolean isIdle(ConnectionState connection) {
+		for (WarmConnection warm : idle) {
+			if (warm.connection == connection) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return an idle connection due for a keepalive, or null if none are
+	 */
+	public synchronized ConnectionState nextKeepAlive(long now) {
+		for (WarmConnection warm : idle) {
+			if (now - warm.lastKeepAlive >= KEEPALIVE_INTERVAL) {
+				warm.lastKeepAlive = now;
+				return warm.connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Puts the connections whose socket has finished back in the pool.
+	 * @param surplus receives the ones the pool has no room for
+	 */
+	public synchronized void returnFinished(long now, List<ConnectionState> surplus) {
+		Iterator<WarmConnection> iter = bound.iterator();
+		while (iter.hasNext()) {
+			WarmConnection warm = iter.next();
+			if (warm.mux.getStreamCount() > 0) {
+				continue;
+			}
+			iter.remove();
+			if (idle.size() + requested < size) {
+				warm.lastKeepAlive = now;
+				idle.add(warm);
+			} else {
+				surplus.add(warm.connection);
+			}
+		}
+	}
+
+	/**
+	 * The connection closed or timed out, forget it.
+	 */
+	public synchronized void remove(ConnectionState connection) {
+		removeFrom(idle, connection);
+		removeFrom(bound, connection);
+	}
+
+	private static void removeFrom(List<WarmConnection> list, ConnectionState connection) {
+		Iterator<WarmConnection> iter = list.iterator();
+		while (iter.hasNext()) {
+			if (iter.next().connection == connection) {
+				iter.remove();
+			}
+		}
+	}
+
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	private static class WarmConnection {
+		ConnectionState connection;
+		MuxPortCommunicator mux;
+		long lastKeepAlive;
+
+		WarmConnection(ConnectionState connection, MuxPortCommunicator mux, long now) {
+			this.connection = connection;
+			this.mux = mux;
+			this.lastKeepAlive = now;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of same sized ByteBuffers so the dns path doesn't allocate a
+ * buffer for every datagram. Any thread may acquire or release.
+ */
+public class BufferPool {
+	public static final int DEFAULT_MAX_POOLED = 4096;
+
+	private ConcurrentLinkedQueue<ByteBuffer> free;
+	/** free.size() walks the whole queue, so count separately */
+	private AtomicInteger freeCount;
+	private int bufferSize;
+	private int maxPooled;
+	private boolean direct;
+
+	/**
+	 * @param bufferSize capacity of every buffer handed out
+	 * @param maxPooled max idle buffers to hold onto, extras are left to the gc
+	 * @param direct allocate direct buffers, which the channels can use without copying
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.freeCount = new AtomicInteger();
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return a cleared buffer, from the pool if there is one
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = free.poll();
+		if (buf == null) {
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		freeCount.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch it afterwards.
+	 * Buffers that didn't come from a pool like this one are ignored.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null || buf.capacity() != bufferSize || buf.isDirect() != direct) {
+			return;
+		}
+		if (freeCount.incrementAndGet() > maxPooled) {
+			freeCount.decrementAndGet();
+			return;
+		}
+		free.offer(buf);
+	}
+
+	/**
+	 * @return a pooled buffer holding a copy of data, ready for reading
+	 */
+	public ByteBuffer wrap(byte [] data) {
+		ByteBuffer buf = data.length <= bufferSize ? acquire() : ByteBuffer.allocate(data.length);
+		buf.put(data);
+		buf.flip();
+		return buf;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+}
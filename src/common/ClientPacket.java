@@ -7,7 +7,7 @@ import org.xbill.DNS.Name;
 
 public class ClientPacket extends Packet {
 		
-	public ClientPacket(short clientID, byte packetID, byte flags, byte encBase, byte lastPidSeen, byte checksum, byte[] dataContent) {
+	public ClientPacket(short clientID, int packetID, byte flags, byte encBase, int lastPidSeen, byte checksum, byte[] dataContent) {
 		super(clientID, packetID, flags, encBase, lastPidSeen, checksum, dataContent);
 	}
 	
@@ -16,14 +16,21 @@ public class ClientPacket extends Packet {
 	}
 
 	public static ClientPacket decodeClientPacket(Name name, String domain) throws IOException {
-		byte [] rawBytes = Packet.decodeName(name, domain);
-		
+		return decodeClientPacket(Packet.decodeName(name, domain));
+	}
+	
+	/**
+	 * @param rawBytes the decoded packet bytes, adopted by the packet
+	 */
+	public static ClientPacket decodeClientPacket(byte [] rawBytes) throws ProtocolException {
 		if (0 != (rawBytes[Packet.OFFSET_FLAGS] & Packet.FLAG_SPECIAL)) {
 			switch (rawBytes[Packet.FIXED_HEADER_SIZE + SpecialClientPacket.OFFSET_SPECIAL_TYPE]) {
 			case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_REQUEST:
 				return new ConnectionRequestClientPacket(rawBytes);
 			case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_CLOSED:
 				return new ConnectionClosedClientPacket(rawBytes);
+			case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_BATCH_REQUEST:
+				return new ConnectionBatchRequestClientPacket(rawBytes);
 			default:
 				throw new ProtocolException("Bad special type on special packet.");
 			}
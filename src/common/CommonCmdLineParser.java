@@ -9,12 +9,14 @@ public abstract class CommonCmdLineParser extends CmdLineParser {
 	private Option mtu;
 	private Option logLevel;
 	private Option logFile;
+	private Option ednsSize;
 
 	public CommonCmdLineParser() {
 		domain = addStringOption("domain");
 		mtu = addIntegerOption("mtu");
 		logLevel = addIntegerOption("log-level");
 		logFile = addStringOption("log-file");
+		ednsSize = addIntegerOption("edns-size");
 	}
 
 	public CommonOptions parseCmdLine(String args[]) {
@@ -27,6 +29,7 @@ public abstract class CommonCmdLineParser extends CmdLineParser {
 			Integer mtuVal = (Integer)getOptionValue(mtu);
 			Integer logLevelVal = (Integer)getOptionValue(logLevel);
 			String logFileVal = (String) getOptionValue(logFile);
+			Integer ednsSizeVal = (Integer)getOptionValue(ednsSize);
 			
 			if (mtuVal != null) {
 				result.mtu = mtuVal;
@@ -41,6 +44,11 @@ public abstract class CommonCmdLineParser extends CmdLineParser {
 			if (logFileVal != null) {
 				result.logFile = logFileVal;
 			}
+			
+			if (ednsSizeVal != null) {
+				//anything up to a plain dns packet turns EDNS0 off
+				result.ednsSize = Math.min(Math.max(ednsSizeVal, DNSSizes.MAX_PACKET_SIZE), 65535);
+			}
 		
 			if (!setDefaults(result)) {
 				return null;
@@ -5,4 +5,5 @@ public class CommonOptions {
 	public String domain;
 	public int logLevel;
 	public String logFile;
+	public int ednsSize;
 }
@@ -4,19 +4,37 @@ import java.net.ProtocolException;
 
 public class ConnectionAcceptedServerPacket extends SpecialServerPacket {
 
-	public static final int MSG_LEN = SPECIAL_HEADER_SIZE + 6;
+	//the server carries many tcp streams over this connection
+	public static final int FLAG_MULTIPLEX = (1 << 0);
+	//the server hands the early data in connection requests to the forward side
+	public static final int FLAG_EARLY_DATA = (1 << 1);
+	//the server takes batched connection requests
+	public static final int FLAG_BATCH = (1 << 2);
+	//the connection uses 16 bit packet ids and the window size sent back
+	public static final int FLAG_WIDE_IDS = (1 << 3);
+	//the server reads selective acks, see Packet.FLAG_SACK
+	public static final int FLAG_SACK = (1 << 4);
+	
+	public static final int MSG_LEN = SPECIAL_HEADER_SIZE + 11;
 	private static final int OFFSET_MTU = SPECIAL_HEADER_SIZE + 0;
 	private static final int OFFSET_CHALLENGE = SPECIAL_HEADER_SIZE + 2;
+	private static final int OFFSET_EDNS_SIZE = SPECIAL_HEADER_SIZE + 6;
+	private static final int OFFSET_FLAGS = SPECIAL_HEADER_SIZE + 8;
+	private static final int OFFSET_WINDOW = SPECIAL_HEADER_SIZE + 9;
 	
 	/**
 	 * @param clientId the new clientid of the connecting host
 	 * @param maxMTU negotiated MTU
 	 * @param challengeId copy of the challenge (in case of multiple clients)
+	 * @param ednsSize the dns response size the server will fill
+	 * @param flags what the server agreed to of what the client asked for
 	 */
-	public ConnectionAcceptedServerPacket(short clientId, int maxMTU, int challengeId) {
+	public ConnectionAcceptedServerPacket(short clientId, int maxMTU, int challengeId, int ednsSize, int flags) {
 		super(clientId, (byte)0, (byte) (Packet.FLAG_SPECIAL | Packet.FLAG_NO_OP), (byte)0, (byte)0, new byte [MSG_LEN]);
 		setMaxMTU(maxMTU);
 		setChallengeId(challengeId);
+		setEdnsSize(ednsSize);
+		setAcceptFlags(flags);
 	}
 
 	public ConnectionAcceptedServerPacket(byte [] data)
@@ -40,9 +58,47 @@ public class ConnectionAcceptedServerPacket extends SpecialServerPacket {
 		writeIntToBytes(getDataContent(), OFFSET_CHALLENGE, challengeId);
 	}
 	
+	public int getEdnsSize() {
+		//older servers dont send it and stick to plain dns
+		if (getDataContent().length < OFFSET_EDNS_SIZE + 2) {
+			return DNSSizes.MAX_PACKET_SIZE;
+		}
+		return readShortFromBytes(getDataContent(), OFFSET_EDNS_SIZE) & 0xffff;
+	}
+	
+	public void setEdnsSize(int ednsSize) {
+		writeShortToBytes(getDataContent(), OFFSET_EDNS_SIZE, ednsSize);
+	}
+	
+	public int getAcceptFlags() {
+		//older servers dont send any
+		if (getDataContent().length < OFFSET_FLAGS + 1) {
+			return 0;
+		}
+		return getDataContent()[OFFSET_FLAGS] & 0xff;
+	}
+	
+	public void setAcceptFlags(int flags) {
+		getDataContent()[OFFSET_FLAGS] = (byte)flags;
+	}
+	
+	/**
+	 * @return the window size agreed on with FLAG_WIDE_IDS, 0 from older servers
+	 */
+	public int getWindowSize() {
+		if (getDataContent().length < OFFSET_WINDOW + 2) {
+			return 0;
+		}
+		return readShortFromBytes(getDataContent(), OFFSET_WINDOW);
+	}
+	
+	public void setWindowSize(int windowSize) {
+		writeShortToBytes(getDataContent(), OFFSET_WINDOW, windowSize);
+	}
+	
 	@Override
 	public String toString() {
-		return "ConnectionAcceptedServerPacket[challengeId:" + getChallengeId() + " MTU: " + getMaxMTU() +  " Packet:" + super.toString() + "]"; 
+		return "ConnectionAcceptedServerPacket[challengeId:" + getChallengeId() + " MTU: " + getMaxMTU() + " EDNS: " + getEdnsSize() + " Packet:" + super.toString() + "]"; 
 	}
 	
 }
@@ -0,0 +1,78 @@
+package common;
+
+import java.net.ProtocolException;
+
+/**
+ * The answer to a ConnectionBatchRequestClientPacket: the client id, 
+ * challenge and accept flags of every connection made, sharing one mtu,
+ * dns response size and window size.
+ */
+public class ConnectionBatchAcceptedServerPacket extends SpecialServerPacket {
+
+	private static final int OFFSET_MTU = SPECIAL_HEADER_SIZE + 0;
+	private static final int OFFSET_EDNS_SIZE = SPECIAL_HEADER_SIZE + 2;
+	private static final int OFFSET_WINDOW = SPECIAL_HEADER_SIZE + 4;
+	private static final int OFFSET_COUNT = SPECIAL_HEADER_SIZE + 6;
+	public static final int HEADER_LEN = SPECIAL_HEADER_SIZE + 7;
+	/** client id (2 bytes), challenge (4 bytes) and flags (1 byte) */
+	public static final int ENTRY_LEN = 7;
+	
+	/**
+	 * @param accepts the connections made, all with the same mtu, dns response
+	 *        size and window size
+	 */
+	public ConnectionBatchAcceptedServerPacket(ConnectionAcceptedServerPacket [] accepts, int count) {
+		super((short)0, (byte)0, (byte) (Packet.FLAG_SPECIAL | Packet.FLAG_NO_OP), (byte)0, (byte)0, new byte [HEADER_LEN + count*ENTRY_LEN]);
+		setType(SPECIAL_TYPE_CONNECTION_BATCH_ACCEPTED);
+		if (count > 0) {
+			writeShortToBytes(getDataContent(), OFFSET_MTU, accepts[0].getMaxMTU());
+			writeShortToBytes(getDataContent(), OFFSET_EDNS_SIZE, accepts[0].getEdnsSize());
+			writeShortToBytes(getDataContent(), OFFSET_WINDOW, accepts[0].getWindowSize());
+		}
+		getDataContent()[OFFSET_COUNT] = (byte)count;
+		for (int i=0; i<count; i++) {
+			int offset = HEADER_LEN + i*ENTRY_LEN;
+			writeShortToBytes(getDataContent(), offset, accepts[i].getClientID());
+			writeIntToBytes(getDataContent(), offset + 2, accepts[i].getChallengeId());
+			getDataContent()[offset + 6] = (byte)accepts[i].getAcceptFlags();
+		}
+	}
+
+	public ConnectionBatchAcceptedServerPacket(byte [] data) throws ProtocolException {
+		super(data);
+		if (getDataContent().length < HEADER_LEN + getCount()*ENTRY_LEN) {
+			throw new ProtocolException("Batch accept too short");
+		}
+	}
+	
+	/**
+	 * @return how many accepts fit in a packet of maxDataLength bytes
+	 */
+	public static int maxCount(int maxDataLength) {
+		return Math.min(255, Math.max(0, (maxDataLength - HEADER_LEN) / ENTRY_LEN));
+	}
+	
+	public int getCount() {
+		return getDataContent()[OFFSET_COUNT] & 0xff;
+	}
+	
+	/**
+	 * @return one of the connections as a single accept, to be handled like one
+	 */
+	public ConnectionAcceptedServerPacket getAccept(int index) {
+		int offset = HEADER_LEN + index*ENTRY_LEN;
+		short clientId = (short) readShortFromBytes(getDataContent(), offset);
+		int challengeId = readIntFromBytes(getDataContent(), offset + 2);
+		int flags = getDataContent()[offset + 6] & 0xff;
+		int mtu = readShortFromBytes(getDataContent(), OFFSET_MTU);
+		int ednsSize = readShortFromBytes(getDataContent(), OFFSET_EDNS_SIZE) & 0xffff;
+		ConnectionAcceptedServerPacket accept = new ConnectionAcceptedServerPacket(clientId, mtu, challengeId, ednsSize, flags);
+		accept.setWindowSize(readShortFromBytes(getDataContent(), OFFSET_WINDOW));
+		return accept;
+	}
+	
+	@Override
+	public String toString() {
+		return "ConnectionBatchAcceptedServerPacket[count:" + getCount() + " Packet:" + super.toString() + "]"; 
+	}
+}
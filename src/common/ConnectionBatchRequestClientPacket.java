@@ -0,0 +1,89 @@
+package common;
+
+import java.net.ProtocolException;
+
+/**
+ * Several connection requests in one packet, for bursts of new connections.
+ * The mtu, late timer, truncation allowance and window size are shared, each
+ * request has its own challenge and flags. The server answers with a
+ * ConnectionBatchAcceptedServerPacket.
+ */
+public class ConnectionBatchRequestClientPacket extends SpecialClientPacket {
+	
+	private static final int OFFSET_MTU = SPECIAL_HEADER_SIZE + 0;
+	private static final int OFFSET_LATETIMER = SPECIAL_HEADER_SIZE + 2;
+	private static final int OFFSET_TRUNC_ALLOWANCE = SPECIAL_HEADER_SIZE + 4;
+	private static final int OFFSET_WINDOW = SPECIAL_HEADER_SIZE + 6;
+	private static final int OFFSET_COUNT = SPECIAL_HEADER_SIZE + 8;
+	public static final int HEADER_LEN = SPECIAL_HEADER_SIZE + 9;
+	/** challenge (4 bytes) and flags (1 byte) */
+	public static final int ENTRY_LEN = 5;
+	
+	public ConnectionBatchRequestClientPacket(int maxMTU, int lateTimerMillis, short truncationAllowance, int windowSize, int [] challengeIds, int [] flags, int count) {
+		super((byte)0, (byte)0, (byte) (Packet.FLAG_SPECIAL | Packet.FLAG_NO_OP), (byte)0, (byte)0, new byte [HEADER_LEN + count*ENTRY_LEN]);
+		setType(SPECIAL_TYPE_CONNECTION_BATCH_REQUEST);
+		writeShortToBytes(getDataContent(), OFFSET_MTU, maxMTU);
+		writeShortToBytes(getDataContent(), OFFSET_LATETIMER, lateTimerMillis);
+		writeShortToBytes(getDataContent(), OFFSET_TRUNC_ALLOWANCE, truncationAllowance);
+		writeShortToBytes(getDataContent(), OFFSET_WINDOW, windowSize);
+		getDataContent()[OFFSET_COUNT] = (byte)count;
+		for (int i=0; i<count; i++) {
+			int offset = HEADER_LEN + i*ENTRY_LEN;
+			writeIntToBytes(getDataContent(), offset, challengeIds[i]);
+			getDataContent()[offset + 4] = (byte)flags[i];
+		}
+	}
+
+	public ConnectionBatchRequestClientPacket(byte [] data) throws ProtocolException {
+		super(data);
+		if (getDataContent().length < HEADER_LEN + getCount()*ENTRY_LEN) {
+			throw new ProtocolException("Batch request too short");
+		}
+	}
+	
+	/**
+	 * @return how many requests fit in a packet of maxDataLength bytes
+	 */
+	public static int maxCount(int maxDataLength) {
+		return Math.min(255, Math.max(0, (maxDataLength - HEADER_LEN) / ENTRY_LEN));
+	}
+	
+	public int getMaxMTU() {
+		return readShortFromBytes(getDataContent(), OFFSET_MTU);
+	}
+	
+	public int getLateTimer() {
+		return readShortFromBytes(getDataContent(), OFFSET_LATETIMER);
+	}
+	
+	public int getTruncationAllowance() {
+		return readShortFromBytes(getDataContent(), OFFSET_TRUNC_ALLOWANCE);
+	}
+	
+	/**
+	 * @return the window size asked for by requests with ConnectionRequestClientPacket.FLAG_WIDE_IDS
+	 */
+	public int getWindowSize() {
+		return readShortFromBytes(getDataContent(), OFFSET_WINDOW);
+	}
+	
+	public int getCount() {
+		return getDataContent()[OFFSET_COUNT] & 0xff;
+	}
+	
+	public int getChallengeId(int index) {
+		return readIntFromBytes(getDataContent(), HEADER_LEN + index*ENTRY_LEN);
+	}
+	
+	/**
+	 * @return the ConnectionRequestClientPacket.FLAG_ flags of one request
+	 */
+	public int getRequestFlags(int index) {
+		return getDataContent()[HEADER_LEN + index*ENTRY_LEN + 4] & 0xff;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionBatchRequestClientPacket[count:" + getCount() + " MTU: " + getMaxMTU() + " Packet:" + super.toString() + "]"; 
+	}
+}
@@ -5,13 +5,22 @@ import java.net.ProtocolException;
 public class ConnectionRequestClientPacket extends SpecialClientPacket {
 	
 	public static final int FLAG_TCP = (1 << 0);
+	//the client reads every answer of a TXT response, so the server can pack in several packets
+	public static final int FLAG_MULTI_PACKET = (1 << 1);
+	//one connection carries many tcp streams, see MuxPortCommunicator
+	public static final int FLAG_MULTIPLEX = (1 << 2);
+	//use 16 bit packet ids and the window size asked for
+	public static final int FLAG_WIDE_IDS = (1 << 3);
+	//the client reads selective acks, see Packet.FLAG_SACK
+	public static final int FLAG_SACK = (1 << 4);
 	
 	private static final int OFFSET_MTU = SPECIAL_HEADER_SIZE + 0;
 	private static final int OFFSET_CHALLENGE = SPECIAL_HEADER_SIZE + 2;
 	private static final int OFFSET_LATETIMER = SPECIAL_HEADER_SIZE + 6; 
 	private static final int OFFSET_FLAGS = SPECIAL_HEADER_SIZE + 8;
 	private static final int OFFSET_TRUNC_ALLOWANCE = SPECIAL_HEADER_SIZE + 9;
-	public static final int MSG_LEN = SPECIAL_HEADER_SIZE + 11;
+	private static final int OFFSET_WINDOW = SPECIAL_HEADER_SIZE + 11;
+	public static final int MSG_LEN = SPECIAL_HEADER_SIZE + 13;
 	
 	public ConnectionRequestClientPacket(int maxMTU, int challengeId, int lateTimerMillis, int flags, short truncationAllowance) {
 		super((byte)0, (byte)0, (byte) (Packet.FLAG_SPECIAL | Packet.FLAG_NO_OP), (byte)0, (byte)0, new byte [MSG_LEN]);
@@ -65,11 +74,58 @@ public class ConnectionRequestClientPacket extends SpecialClientPacket {
 	public int getTruncationAllowance() {
 		return readShortFromBytes(getDataContent(), OFFSET_TRUNC_ALLOWANCE);
 	}
+	
+	/**
+	 * @param windowSize packets in flight each way, with FLAG_WIDE_IDS
+	 */
+	public void setWindowSize(int windowSize) {
+		writeShortToBytes(getDataContent(), OFFSET_WINDOW, windowSize);
+	}
+	
+	public int getWindowSize() {
+		//older clients dont send one
+		if (getDataContent().length < OFFSET_WINDOW + 2) {
+			return 0;
+		}
+		return readShortFromBytes(getDataContent(), OFFSET_WINDOW);
+	}
+	
+	/**
+	 * The first bytes the client's application sent, the server hands them
+	 * to the forward side as it connects so they skip a round trip. Only
+	 * servers that set ConnectionAcceptedServerPacket.FLAG_EARLY_DATA read them.
+	 */
+	public void setEarlyData(byte [] data, int offset, int length) {
+		byte [] content = new byte [MSG_LEN + length];
+		System.arraycopy(getDataContent(), 0, content, 0, MSG_LEN);
+		System.arraycopy(data, offset, content, MSG_LEN, length);
+		setDataContent(content);
+	}
+	
+	/**
+	 * @return the early data, or null if there is none
+	 */
+	public byte [] getEarlyData() {
+		byte [] content = getDataContent();
+		if (content.length <= MSG_LEN) {
+			return null;
+		}
+		byte [] early = new byte [content.length - MSG_LEN];
+		System.arraycopy(content, MSG_LEN, early, 0, early.length);
+		return early;
+	}
+	
+	/**
+	 * @return the most early data a request encoded with encodingType can carry
+	 */
+	public static int maxEarlyData(String domain, int encodingType) {
+		return Math.max(0, ClientPacket.maxDataLength(domain, 0, encodingType) - Packet.FIXED_HEADER_SIZE - MSG_LEN);
+	}
 
 	@Override
 	public String toString() {
 		String tcpOrUDP = ((getRequestFlags() & FLAG_TCP) != 0) ? "TCP" : "UDP";
-		return "ConnectionRequestClientPacket[type:" + tcpOrUDP + " challengeId:" + getChallengeId() + " MTU: " + getMaxMTU() +  " Packet:" + super.toString() + "]"; 
+		return "ConnectionRequestClientPacket[type:" + tcpOrUDP + " challengeId:" + getChallengeId() + " MTU: " + getMaxMTU() + " early data:" + Math.max(0, getDataContent().length - MSG_LEN) + " Packet:" + super.toString() + "]"; 
 	}
 	
 }
@@ -6,31 +6,45 @@ import java.util.LinkedList;
 import java.util.List;
 
 public class ConnectionState implements SlidingWindowListener {
-	public static final byte WINDOW_SIZE = 33;
-	//this should probably be based on the client send interval, or be dynamic
-	private int lateMillis;
+	/** the window with 8 bit packet ids, and for peers that dont do 16 bit ones */
+	public static final int WINDOW_SIZE = 33;
+	/** the largest window 16 bit packet ids allow, half the id space */
+	public static final int MAX_WINDOW_SIZE = 32768;
 	private short clientId;
 	private SlidingWindowSet slidingWindows;
 	private PacketConverter packetConverter;
 	private PacketFactory packetFactory;
 	/** A queue of mini packets to be sent to the dnsServer */
 	private LinkedList<Packet> dnsQueue;
-	private byte nextPacketId;
+	private int nextPacketId;
+	private int idMask;
 	private PortCommunicator portCommunicator;
 	private int nextPacketIteration;
 	private int backOff;
 	private boolean throttle;
 	private boolean hasSentConnectionClosed;
+	/** the other end reads selective acks, see Packet.FLAG_SACK */
+	private boolean selectiveAcks;
 	
 	public ConnectionState(short clientId, PacketConverter packetConverter, PacketFactory packetFactory, PortCommunicator portCommunicator, int lateMillis, boolean throttle) throws SocketException {
+		this(clientId, packetConverter, packetFactory, portCommunicator, lateMillis, throttle, WINDOW_SIZE);
+	}
+	
+	/**
+	 * @param windowSize packets in flight each way, both ends must agree on it.
+	 *        More than WINDOW_SIZE needs a packetFactory with 16 bit packet ids.
+	 * @param lateMillis ms a packet may go unacked before it is sent again, 
+	 *        until the round trip has been measured
+	 */
+	public ConnectionState(short clientId, PacketConverter packetConverter, PacketFactory packetFactory, PortCommunicator portCommunicator, int lateMillis, boolean throttle, int windowSize) throws SocketException {
 		this.clientId = clientId;
-		this.slidingWindows = new SlidingWindowSet(WINDOW_SIZE);
+		this.idMask = packetFactory.hasWideIds() ? 0xffff : 0xff;
+		this.slidingWindows = new SlidingWindowSet(windowSize, idMask, lateMillis);
 		this.slidingWindows.setRecievedWindowListener(this);
 		this.packetConverter = packetConverter;
 		this.packetFactory = packetFactory;
 		this.dnsQueue = new LinkedList<Packet>();
 		this.nextPacketId = 1;
-		this.lateMillis = lateMillis;
 		this.portCommunicator = portCommunicator;
 		this.throttle = throttle;
 		this.hasSentConnectionClosed = false;
@@ -39,6 +53,13 @@ public class ConnectionState implements SlidingWindowListener {
 	public short getClientId() {
 		return clientId;
 	}
+	
+	/**
+	 * @param selectiveAcks the other end agreed to read selective acks
+	 */
+	public void setSelectiveAcks(boolean selectiveAcks) {
+		this.selectiveAcks = selectiveAcks;
+	}
 
 	public void dnsPacketReceived(Packet p) {
 		assert(p.isChecksumValid());
@@ -54,8 +75,7 @@ public class ConnectionState implements SlidingWindowListener {
 		}
 		
 		//we got an ack! reset our packetIteration if there are no more late packets
-		Packet oldestLate = slidingWindows.getOldestPacketIfLate(lateMillis);
-		if (oldestLate == null) {
+		if (!slidingWindows.isOldestPacketLate()) {
 			nextPacketIteration = 0;
 		}
 	}
@@ -64,21 +84,35 @@ public class ConnectionState implements SlidingWindowListener {
 		slidingWindows.packetSent(p);
 	}
 	
-	protected Packet getNextPacket() {
-		Packet pktToReturn = null;
+	/**
+	 * @param maxDataLength if not -1 only a late or new data packet holding at 
+	 *        most this many bytes is returned, or null when there is none
+	 */
+	protected Packet getNextPacket(int maxDataLength) {
+		boolean limited = maxDataLength != -1;
+		if (limited && packetFactory.hasWideIds()) {
+			//the room was worked out for the fixed header
+			maxDataLength -= Packet.WIDE_IDS_SIZE;
+		}
+		
+		//the other end says it is missing the oldest packet
+		Packet pktToReturn = slidingWindows.getFastRetransmitPacket(maxDataLength);
 				
 		if (pktToReturn == null) {
 			//the oldest packet is most important because acks must come in order,
 			//every 2nd packet will be oldest
 			if ((++nextPacketIteration%2) == 0) {
-				pktToReturn = slidingWindows.getOldestPacketIfLate(lateMillis);
+				pktToReturn = slidingWindows.getOldestPacketIfLate();
+				if (limited && pktToReturn != null && pktToReturn.getDataContent().length > maxDataLength) {
+					pktToReturn = null;
+				}
 			}
 		}
 		
 		/*
 		if (pktToReturn == null) {
 			//always priortize late packets because they hold up the entire pipeline
-			pktToReturn = slidingWindows.getLeastRecentlySentPacketIfLate(lateMillis);
+			pktToReturn = slidingWindows.getLeastRecentlySentPacketIfLate();
 		}*/
 		
 		if (pktToReturn == null) {
@@ -94,7 +128,12 @@ public class ConnectionState implements SlidingWindowListener {
 			}
 			
 			if (canSendNewData) {
+				if (limited && dnsQueue.getFirst().getDataContent().length > maxDataLength) {
+					return null;
+				}
 				pktToReturn = dnsQueue.removeFirst();
+			} else if (limited) {
+				return null;
 			} else { 
 				//instead of sending a no-op resend any pending data
 				pktToReturn = slidingWindows.getLeastRecentlySentPacket();
@@ -113,6 +152,11 @@ public class ConnectionState implements SlidingWindowListener {
 		}
 		
 		pktToReturn.setLastPidSeen(slidingWindows.getLatestWaitingPid());
+		if (selectiveAcks && !pktToReturn.isSpecial()) {
+			//only sent in what room the packet has left, a full packet goes without
+			int room = (limited ? maxDataLength : packetFactory.getMaxPacketSize()) - pktToReturn.getDataContent().length - 1;
+			pktToReturn.setSack(room > 0 ? slidingWindows.getSackBitmap(Math.min(room, Packet.MAX_SACK_SIZE)) : null);
+		}
 		
 		//here we reduce the number of duplicate packets sent to allow for other traffic
 		if (throttle && pktToReturn.isNoOp() && slidingWindows.isOppositeEndIdle()) {
@@ -136,7 +180,35 @@ public class ConnectionState implements SlidingWindowListener {
 		return pktToReturn;		
 	}
 	
-	public Packet getOldPacketSent(byte packetId) {
+	/**
+	 * @return true if there is new data to send and room in the window to 
+	 *         send it, or a packet the other end is missing should go again
+	 */
+	public boolean hasDataWaiting() {
+		if (slidingWindows.isFastRetransmitDue()) {
+			return true;
+		}
+		return slidingWindows.canSendData() && (!dnsQueue.isEmpty() || portCommunicator.hasIncoming());
+	}
+
+	/**
+	 * @return true if there is nothing to send and nothing waiting on an ack
+	 */
+	public boolean isQuiet() {
+		return dnsQueue.isEmpty() && !portCommunicator.hasIncoming() && !slidingWindows.hasUnackedData();
+	}
+	
+	/**
+	 * @return a no-op that keeps an idle connection from timing out, whether
+	 *         or not the throttle would let one out
+	 */
+	public Packet keepAlive() {
+		Packet noOp = packetFactory.createNoOp(clientId);
+		noOp.setLastPidSeen(slidingWindows.getLatestWaitingPid());
+		return noOp;
+	}
+
+	public Packet getOldPacketSent(int packetId) {
 		return slidingWindows.getOldPacketSent(packetId);
 	}
 
@@ -147,7 +219,7 @@ public class ConnectionState implements SlidingWindowListener {
 		}
 	
 		Packet [] packets = packetConverter.convertFromBytes(packetFactory, unit.data, unit.data.length, clientId, nextPacketId, unit.splittable, unit.endOfWrite, unit.endOfRead);
-		nextPacketId = (byte)(packets.length + nextPacketId);
+		nextPacketId = (packets.length + nextPacketId) & idMask;
 		
 		for (Packet p : packets) {
 			dnsQueue.add(p);
@@ -164,7 +236,7 @@ public class ConnectionState implements SlidingWindowListener {
 		
 		//see if we received any more packets locally
 		//figure out what needs to go over DNS
-		Packet outgoing = getNextPacket();
+		Packet outgoing = getNextPacket(-1);
 		if (outgoing == null) {
 			return null;
 		}
@@ -174,6 +246,21 @@ public class ConnectionState implements SlidingWindowListener {
 		return outgoing;
 	}
 	
+	/**
+	 * Like update, but for filling out a dns answer that already holds a 
+	 * packet: never returns no-ops or resends that arent late yet.
+	 * @param maxDataLength the most data bytes the packet can hold, 0 or more
+	 * @return the packet to send or null if there is nothing that fits
+	 */
+	public Packet updateIfFits(int maxDataLength) {
+		Packet outgoing = getNextPacket(maxDataLength);
+		if (outgoing == null) {
+			return null;
+		}
+		dnsPacketSent(outgoing);
+		return outgoing;
+	}
+	
 	public void onSlidingWindowCollectedPackets(List<Packet> packets) {
 		byte [] data = packetConverter.convertToBytes(packets);
 		if (data != null) {
@@ -7,6 +7,12 @@ public class DNSSizes {
 	public static final int MAX_DOMAIN_LABEL = 63;
 	
 	public static final int MAX_PACKET_SIZE = 512;
+	//udp payload size the client advertises with EDNS0, small enough to avoid ip fragmentation
+	public static final int DEFAULT_EDNS_SIZE = 1232;
+	//the largest udp payload the server will fill
+	public static final int MAX_EDNS_SIZE = 4096;
+	//root name, type, class (the payload size), ttl and rdata length
+	public static final int OPT_RECORD_SIZE = 11;
 	//12 for the dns header, 4 for the udp header
 	public static final int DNS_HEADER_SIZE = 12 + 4;
 	//sometimes servers like modifying our packets a bit
@@ -0,0 +1,415 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Reads and writes the few pieces of the dns wire format the tunnel needs
+ * straight from and into ByteBuffers, without building dnsjava Messages,
+ * Names and Records. Anything out of the ordinary is refused here and left
+ * for dnsjava to deal with.
+ */
+public class DNSWire {
+	public static final int HEADER_SIZE     = 12;
+	/** the question always follows the header */
+	public static final int OFFSET_QUESTION = HEADER_SIZE;
+
+	//header field offsets
+	public static final int OFFSET_ID      = 0;
+	public static final int OFFSET_FLAGS   = 2;
+	public static final int OFFSET_QDCOUNT = 4;
+	public static final int OFFSET_ANCOUNT = 6;
+	public static final int OFFSET_NSCOUNT = 8;
+	public static final int OFFSET_ARCOUNT = 10;
+
+	//header flag bits
+	public static final int FLAG_QR = 0x8000;
+	public static final int FLAG_AA = 0x0400;
+	public static final int FLAG_TC = 0x0200;
+	public static final int FLAG_RD = 0x0100;
+	public static final int FLAG_RA = 0x0080;
+	public static final int MASK_OPCODE = 0x7800;
+	public static final int MASK_RCODE  = 0x000f;
+
+	public static final int TYPE_CNAME = 5;
+	public static final int TYPE_TXT   = 16;
+	public static final int TYPE_OPT   = 41;
+	public static final int CLASS_IN   = 1;
+
+	/** compression pointer to the question name */
+	public static final int POINTER_TO_QUESTION = 0xC000 | OFFSET_QUESTION;
+	/** a label with either top bit set is a compression pointer (or reserved) */
+	public static final int LABEL_POINTER_MASK = 0xC0;
+	/** max bytes in one TXT character-string */
+	public static final int MAX_TXT_STRING = 255;
+	/** type, class, ttl and rdata length after a record's name */
+	public static final int RR_FIXED_SIZE = 10;
+
+	/**
+	 * Finds the end of an uncompressed name.
+	 * @param buf buffer holding a dns message
+	 * @param offset where the name starts
+	 * @return the offset just past the name, or -1 if the name is
+	 *         compressed, too long or runs off the end of the buffer
+	 */
+	public static int skipName(ByteBuffer buf, int offset) {
+		int nameLen = 0;
+		while (offset < buf.limit()) {
+			int labelLen = buf.get(offset) & 0xff;
+			offset++;
+			if (labelLen == 0) {
+				return offset;
+			}
+			if ((labelLen & LABEL_POINTER_MASK) != 0) {
+				return -1;
+			}
+			nameLen += labelLen + 1;
+			if (nameLen > DNSSizes.MAX_DOMAIN_LEN) {
+				return -1;
+			}
+			offset += labelLen;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the offset just past the first question (name, type and class),
+	 *         or -1 if it isn't a plain uncompressed question
+	 */
+	public static int endOfQuestion(ByteBuffer query) {
+		int end = skipName(query, OFFSET_QUESTION);
+		if (end == -1 || end + 4 > query.limit()) {
+			return -1;
+		}
+		return end + 4;
+	}
+
+	/**
+	 * @return a copy of the first question (name, type and class) that can be
+	 *         used as a map key, or null if it isn't a plain question
+	 */
+	public static ByteBuffer copyQuestion(ByteBuffer query) {
+		int end = endOfQuestion(query);
+		if (end == -1) {
+			return null;
+		}
+		byte [] question = new byte [end - OFFSET_QUESTION];
+		for (int i=0; i<question.length; i++) {
+			question[i] = query.get(OFFSET_QUESTION + i);
+		}
+		return ByteBuffer.wrap(question);
+	}
+
+	/**
+	 * @return the type of the first question, the query must have passed endOfQuestion
+	 */
+	public static int getQuestionType(ByteBuffer query) {
+		return query.getShort(endOfQuestion(query) - 4) & 0xffff;
+	}
+
+	/**
+	 * @param domain a domain name like "tnl.example.com"
+	 * @return the name in wire format, lowercased, root label included
+	 */
+	public static byte [] toWireName(String domain) {
+		byte [] text = domain.toLowerCase(Locale.ENGLISH).getBytes();
+		byte [] wire = new byte [text.length + 2];
+		int wireLen = 0;
+		int labelStart = 0;
+		for (int i=0; i<=text.length; i++) {
+			if (i == text.length || text[i] == '.') {
+				int labelLen = i - labelStart;
+				//skip the empty label of a trailing dot
+				if (labelLen > 0) {
+					wire[wireLen++] = (byte) labelLen;
+					System.arraycopy(text, labelStart, wire, wireLen, labelLen);
+					wireLen += labelLen;
+				}
+				labelStart = i + 1;
+			}
+		}
+		wire[wireLen++] = 0;
+
+		byte [] trimmed = new byte [wireLen];
+		System.arraycopy(wire, 0, trimmed, 0, wireLen);
+		return trimmed;
+	}
+
+	/**
+	 * Pulls the tunnel symbols out of a plain query: a QUERY with no error, one
+	 * TXT or CNAME question in class IN for a name under the tunnel domain, no
+	 * answers and at most an OPT record.
+	 * @param domain the tunnel domain from {@link #toWireName(String)}
+	 * @param symbols receives the labels in front of the domain without their
+	 *        length bytes, needs MAX_DOMAIN_LEN room
+	 * @return the number of symbols, or -1 if the query needs the slow path
+	 */
+	public static int readQuerySymbols(ByteBuffer query, byte [] domain, byte [] symbols) {
+		if (query.limit() < HEADER_SIZE) {
+			return -1;
+		}
+		int flags = query.getShort(OFFSET_FLAGS) & 0xffff;
+		if ((flags & (FLAG_QR | MASK_OPCODE | MASK_RCODE)) != 0) {
+			return -1;
+		}
+		if (query.getShort(OFFSET_QDCOUNT) != 1 || query.getShort(OFFSET_ANCOUNT) != 0 || 
+				query.getShort(OFFSET_NSCOUNT) != 0) {
+			return -1;
+		}
+
+		int questionEnd = endOfQuestion(query);
+		if (questionEnd == -1) {
+			return -1;
+		}
+		int type = query.getShort(questionEnd - 4) & 0xffff;
+		int dclass = query.getShort(questionEnd - 2) & 0xffff;
+		if ((type != TYPE_TXT && type != TYPE_CNAME) || dclass != CLASS_IN) {
+			return -1;
+		}
+
+		int arCount = query.getShort(OFFSET_ARCOUNT) & 0xffff;
+		if (arCount > 1 || (arCount == 1 && !isOPT(query, questionEnd))) {
+			return -1;
+		}
+
+		//the name must end in the domain, starting on a label boundary
+		int nameEnd = questionEnd - 4;
+		int domainStart = nameEnd - domain.length;
+		int numSymbols = 0;
+		int offset = OFFSET_QUESTION;
+		while (offset < domainStart) {
+			int labelLen = query.get(offset++);
+			for (int i=0; i<labelLen; i++) {
+				symbols[numSymbols++] = query.get(offset++);
+			}
+		}
+		if (offset != domainStart || numSymbols == 0) {
+			return -1;
+		}
+		for (int i=0; i<domain.length; i++) {
+			byte b = query.get(domainStart + i);
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != domain[i]) {
+				return -1;
+			}
+		}
+		return numSymbols;
+	}
+
+	/**
+	 * @return true if the record at offset is a well formed OPT record that
+	 *         ends the message
+	 */
+	private static boolean isOPT(ByteBuffer msg, int offset) {
+		//OPT is always owned by the root
+		if (offset + 1 + RR_FIXED_SIZE > msg.limit() || msg.get(offset) != 0) {
+			return false;
+		}
+		int type = msg.getShort(offset + 1) & 0xffff;
+		int rdLength = msg.getShort(offset + 1 + 8) & 0xffff;
+		return type == TYPE_OPT && offset + 1 + RR_FIXED_SIZE + rdLength == msg.limit();
+	}
+
+	/**
+	 * @return the wire length of the name writeQuery builds from the symbols
+	 */
+	public static int nameLength(int numSymbols, byte [] domain) {
+		int numLabels = (numSymbols + DNSSizes.MAX_DOMAIN_LABEL - 1) / DNSSizes.MAX_DOMAIN_LABEL;
+		return numSymbols + numLabels + domain.length;
+	}
+
+	/**
+	 * @return the udp payload size from the query's OPT record, or -1 if it
+	 *         doesnt have one where readQuerySymbols would accept it
+	 */
+	public static int getUDPPayloadSize(ByteBuffer query) {
+		int questionEnd = endOfQuestion(query);
+		if (questionEnd == -1 || query.getShort(OFFSET_ARCOUNT) != 1 || !isOPT(query, questionEnd)) {
+			return -1;
+		}
+		//an OPT record's class is the payload size
+		return query.getShort(questionEnd + 3) & 0xffff;
+	}
+
+	/**
+	 * Writes an EDNS0 OPT record with no options, the caller counts it in ARCOUNT.
+	 */
+	public static void writeOPT(ByteBuffer out, int udpPayloadSize) {
+		out.put((byte) 0);
+		out.putShort((short) TYPE_OPT);
+		out.putShort((short) udpPayloadSize);
+		//extended rcode, version 0 and no flags
+		out.putInt(0);
+		out.putShort((short) 0);
+	}
+
+	/**
+	 * Writes a recursive query for the symbols under the tunnel domain.
+	 * @param symbols the packet's label symbols, split into labels here
+	 * @param domain the tunnel domain from {@link #toWireName(String)}
+	 * @param udpPayloadSize advertised with an OPT record if bigger than a 
+	 *        plain dns packet
+	 */
+	public static void writeQuery(ByteBuffer out, int id, byte [] symbols, byte [] domain, int type, int udpPayloadSize) {
+		boolean edns = udpPayloadSize > DNSSizes.MAX_PACKET_SIZE;
+		writeHeader(out, id, FLAG_RD, 0, 1, 0, 0, edns ? 1 : 0);
+		int end = symbols.length;
+		for (int offset=0; offset<end; offset+=DNSSizes.MAX_DOMAIN_LABEL) {
+			int labelLen = Math.min(DNSSizes.MAX_DOMAIN_LABEL, end - offset);
+			out.put((byte) labelLen);
+			out.put(symbols, offset, labelLen);
+		}
+		out.put(domain);
+		out.putShort((short) type);
+		out.putShort((short) CLASS_IN);
+		if (edns) {
+			writeOPT(out, udpPayloadSize);
+		}
+	}
+
+	/**
+	 * Pulls the symbols out of the answers of a plain response: no error,
+	 * not truncated, one question and answers of the type asked for. TXT
+	 * character-strings are joined, CNAME labels have their dots taken out.
+	 * The symbols of each answer are put in symbols one after the other.
+	 * @param lengths receives the number of symbols in each answer, answers 
+	 *        past its length are ignored
+	 * @return the number of answers read, or -1 if the response needs the slow path
+	 */
+	public static int readAnswerSymbols(ByteBuffer response, int type, byte [] symbols, int [] lengths) {
+		if (response.limit() < HEADER_SIZE) {
+			return -1;
+		}
+		int flags = response.getShort(OFFSET_FLAGS) & 0xffff;
+		if ((flags & FLAG_QR) == 0 || (flags & (FLAG_TC | MASK_RCODE)) != 0) {
+			return -1;
+		}
+		int numAnswers = response.getShort(OFFSET_ANCOUNT) & 0xffff;
+		if (response.getShort(OFFSET_QDCOUNT) != 1 || numAnswers == 0) {
+			return -1;
+		}
+		numAnswers = Math.min(numAnswers, lengths.length);
+
+		int offset = endOfQuestion(response);
+		if (offset == -1) {
+			return -1;
+		}
+		int numSymbols = 0;
+		for (int answer=0; answer<numAnswers; answer++) {
+			//the answer's name is normally a pointer to the question
+			int labelLen = offset < response.limit() ? response.get(offset) & 0xff : 0;
+			if ((labelLen & LABEL_POINTER_MASK) == LABEL_POINTER_MASK) {
+				offset += 2;
+			} else {
+				offset = skipName(response, offset);
+				if (offset == -1) {
+					return -1;
+				}
+			}
+			if (offset + RR_FIXED_SIZE > response.limit() || (response.getShort(offset) & 0xffff) != type) {
+				return -1;
+			}
+			int rdLength = response.getShort(offset + 8) & 0xffff;
+			int rdStart = offset + RR_FIXED_SIZE;
+			int rdEnd = rdStart + rdLength;
+			if (rdEnd > response.limit()) {
+				return -1;
+			}
+
+			int answerStart = numSymbols;
+			offset = rdStart;
+			while (offset < rdEnd) {
+				int len = response.get(offset++) & 0xff;
+				if (type == TYPE_CNAME) {
+					if (len == 0) {
+						break;
+					}
+					//a resolver compressed our name, let dnsjava untangle it
+					if ((len & LABEL_POINTER_MASK) != 0) {
+						return -1;
+					}
+				}
+				if (offset + len > rdEnd || numSymbols + len > symbols.length) {
+					return -1;
+				}
+				for (int i=0; i<len; i++) {
+					symbols[numSymbols++] = response.get(offset++);
+				}
+			}
+			lengths[answer] = numSymbols - answerStart;
+			offset = rdEnd;
+		}
+		return numAnswers;
+	}
+
+	public static void writeHeader(ByteBuffer out, int id, int flags, int rcode, int qdCount, int anCount, int nsCount, int arCount) {
+		out.putShort((short) id);
+		out.putShort((short) (flags | (rcode & 0xf)));
+		out.putShort((short) qdCount);
+		out.putShort((short) anCount);
+		out.putShort((short) nsCount);
+		out.putShort((short) arCount);
+	}
+
+	/**
+	 * Starts an answer record whose name points back at the question. Write
+	 * the rdata next, then call {@link #endRecord(ByteBuffer, int)}.
+	 * @return the offset of the rdata length, to hand to endRecord
+	 */
+	public static int startAnswer(ByteBuffer out, int type, long ttl) {
+		out.putShort((short) POINTER_TO_QUESTION);
+		out.putShort((short) type);
+		out.putShort((short) CLASS_IN);
+		out.putInt((int) ttl);
+		int rdLengthOffset = out.position();
+		out.putShort((short) 0);
+		return rdLengthOffset;
+	}
+
+	/**
+	 * Fills in the rdata length of a record started with startAnswer.
+	 */
+	public static void endRecord(ByteBuffer out, int rdLengthOffset) {
+		out.putShort(rdLengthOffset, (short) (out.position() - rdLengthOffset - 2));
+	}
+
+	/**
+	 * Writes symbols as TXT rdata, split into as many character-strings as it takes.
+	 */
+	public static void writeCharacterStrings(ByteBuffer out, byte [] symbols, int offset, int len) {
+		int end = offset + len;
+		do {
+			int stringLen = Math.min(MAX_TXT_STRING, end - offset);
+			out.put((byte) stringLen);
+			out.put(symbols, offset, stringLen);
+			offset += stringLen;
+		} while (offset < end);
+	}
+
+	/**
+	 * Writes symbols as an absolute name made of full size labels.
+	 */
+	public static void writeLabels(ByteBuffer out, byte [] symbols, int offset, int len) {
+		int end = offset + len;
+		while (offset < end) {
+			int labelLen = Math.min(DNSSizes.MAX_DOMAIN_LABEL, end - offset);
+			out.put((byte) labelLen);
+			out.put(symbols, offset, labelLen);
+			offset += labelLen;
+		}
+		//the root label
+		out.put((byte) 0);
+	}
+
+	/**
+	 * @return a copy of the readable bytes, for the parts of the code that
+	 *         still need a byte array
+	 */
+	public static byte [] toArray(ByteBuffer buf) {
+		byte [] data = new byte[buf.remaining()];
+		buf.duplicate().get(data);
+		return data;
+	}
+}
@@ -43,7 +43,7 @@ public class LZMAPacketConverter extends PacketConverter {
 	
 	@Override
 	public Packet[] convertFromBytes(PacketFactory packFact, byte[] realData,
-			int dataLen, short clientId, byte packetIdStart, boolean splitPackets, boolean endOfWrite, boolean endOfRead) {
+			int dataLen, short clientId, int packetIdStart, boolean splitPackets, boolean endOfWrite, boolean endOfRead) {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(realData, 0, dataLen);
 		ByteArrayOutputStream out = new ByteArrayOutputStream(realData.length + 100);
@@ -0,0 +1,273 @@
+package common;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Carries many local tcp connections (streams) over one tunnel connection,
+ * so they share a single handshake, sliding window and compressor. Each
+ * stream's data goes in frames tagged with its stream id:
+ *
+ * streamId (2 bytes) | type (1 byte) | length (2 bytes) | payload
+ *
+ * The client opens streams for the sockets it accepts, the server connects
+ * each new stream to the forward address. A stream may only have
+ * STREAM_WINDOW bytes in flight that the other end hasn't written out
+ * locally yet, it gives CREDIT back as it does, so one slow local
+ * application can't stall the others.
+ */
+public class MuxPortCommunicator extends PortCommunicator {
+	public static final int FRAME_HEADER_SIZE = 5;
+	public static final int MAX_FRAME_DATA = Common.DEFAULT_MTU - FRAME_HEADER_SIZE;
+	/** bytes a stream may send before the other end gives credit back */
+	public static final int STREAM_WINDOW = 16384;
+
+	public static final byte FRAME_OPEN   = 1;
+	public static final byte FRAME_DATA   = 2;
+	/** the sender won't send any more data on the stream */
+	public static final byte FRAME_FIN    = 3;
+	/** payload is a 4 byte count of bytes the sender may send on top of what it had */
+	public static final byte FRAME_CREDIT = 4;
+	/** the stream is gone, drop it */
+	public static final byte FRAME_RESET  = 5;
+
+	private static final int OFFSET_STREAM = 0;
+	private static final int OFFSET_TYPE = 2;
+	private static final int OFFSET_LENGTH = 3;
+
+	/** where the server connects new streams, null on the client */
+	private InetSocketAddress connectTo;
+	private HashMap<Integer, MuxStream> streams;
+	/** frames waiting to go over dns */
+	private LinkedList<byte []> outgoing;
+	/** the start of a frame whose end hasn't been received yet */
+	private byte [] partial;
+	private Object incomingLock;
+	private int nextStreamId;
+	private boolean closed;
+
+	/**
+	 * @param connectTo where to connect the streams the other end opens,
+	 *        null if only this end opens streams
+	 */
+	public MuxPortCommunicator(InetSocketAddress connectTo) {
+		super("Mux comm");
+		this.connectTo = connectTo;
+		this.streams = new HashMap<Integer, MuxStream>();
+		this.outgoing = new LinkedList<byte []>();
+		this.partial = new byte [0];
+		this.incomingLock = new Object();
+		this.nextStreamId = 1;
+	}
+
+	/**
+	 * Starts carrying a local socket as a new stream.
+	 */
+	public void openStream(Socket socket) {
+		MuxStream stream;
+		synchronized (this) {
+			if (closed) {
+				try {
+					socket.close();
+				} catch (Exception e) {
+				}
+				return;
+			}
+			int id = nextStreamId;
+			while (id == 0 || streams.containsKey(id)) {
+				id = (id + 1) & 0xffff;
+			}
+			nextStreamId = (id + 1) & 0xffff;
+			stream = new MuxStream(this, id, socket, null);
+			streams.put(id, stream);
+			sendFrame(id, FRAME_OPEN, null, 0, 0);
+		}
+		Log.get().println(Log.LEVEL_INFO, "New stream (stream:" + stream.getStreamId() + ").");
+		stream.start();
+	}
+
+	public synchronized int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * Queues a frame for the other end, called by the streams.
+	 */
+	synchronized void sendFrame(int streamId, byte type, byte [] data, int offset, int length) {
+		if (closed) {
+			return;
+		}
+		byte [] frame = new byte [FRAME_HEADER_SIZE + length];
+		Packet.writeShortToBytes(frame, OFFSET_STREAM, streamId);
+		frame[OFFSET_TYPE] = type;
+		Packet.writeShortToBytes(frame, OFFSET_LENGTH, length);
+		if (length > 0) {
+			System.arraycopy(data, offset, frame, FRAME_HEADER_SIZE, length);
+		}
+		outgoing.add(frame);
+		firePacketReceived();
+	}
+
+	void sendCredit(int streamId, int bytes) {
+		byte [] credit = new byte [4];
+		Packet.writeIntToBytes(credit, 0, bytes);
+		sendFrame(streamId, FRAME_CREDIT, credit, 0, credit.length);
+	}
+
+	synchronized void removeStream(MuxStream stream) {
+		if (streams.get(stream.getStreamId()) == stream) {
+			streams.remove(stream.getStreamId());
+		}
+	}
+
+	private synchronized MuxStream getStream(int streamId) {
+		return streams.get(streamId);
+	}
+
+	/**
+	 * @return as many whole frames as fit in one mtu, never less than one
+	 */
+	@Override
+	public synchronized TransmissionUnit receiveIncoming() {
+		if (outgoing.isEmpty()) {
+			return null;
+		}
+		int size = 0;
+		int count = 0;
+		for (byte [] frame : outgoing) {
+			if (count > 0 && size + frame.length > Common.DEFAULT_MTU) {
+				break;
+			}
+			size += frame.length;
+			count++;
+		}
+
+		byte [] data = new byte [size];
+		int offset = 0;
+		for (int i=0; i<count; i++) {
+			byte [] frame = outgoing.removeFirst();
+			System.arraycopy(frame, 0, data, offset, frame.length);
+			offset += frame.length;
+		}
+		return new TransmissionUnit(data, true, false, false);
+	}
+
+	@Override
+	public synchronized boolean hasIncoming() {
+		return !outgoing.isEmpty();
+	}
+
+	/**
+	 * Data from the other end, split into frames and handed to the streams.
+	 * Frames may be split over several calls.
+	 */
+	@Override
+	public void sendPacket(byte [] data) {
+		synchronized (incomingLock) {
+			byte [] buffer = data;
+			if (partial.length > 0) {
+				buffer = new byte [partial.length + data.length];
+				System.arraycopy(partial, 0, buffer, 0, partial.length);
+				System.arraycopy(data, 0, buffer, partial.length, data.length);
+			}
+
+			int offset = 0;
+			while (buffer.length - offset >= FRAME_HEADER_SIZE) {
+				int length = Packet.readShortFromBytes(buffer, offset + OFFSET_LENGTH);
+				if (buffer.length - offset < FRAME_HEADER_SIZE + length) {
+					break;
+				}
+				int streamId = Packet.readShortFromBytes(buffer, offset + OFFSET_STREAM);
+				byte type = buffer[offset + OFFSET_TYPE];
+				handleFrame(streamId, type, buffer, offset + FRAME_HEADER_SIZE, length);
+				offset += FRAME_HEADER_SIZE + length;
+			}
+
+			partial = new byte [buffer.length - offset];
+			System.arraycopy(buffer, offset, partial, 0, partial.length);
+		}
+	}
+
+	private void handleFrame(int streamId, byte type, byte [] data, int offset, int length) {
+		MuxStream stream = getStream(streamId);
+
+		if (type == FRAME_OPEN) {
+			if (stream != null || connectTo == null) {
+				Log.get().println(Log.LEVEL_WARN, "Unexpected stream open (stream:" + streamId + ").");
+				return;
+			}
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				stream = new MuxStream(this, streamId, null, connectTo);
+				streams.put(streamId, stream);
+			}
+			Log.get().println(Log.LEVEL_INFO, "New stream (stream:" + streamId + ").");
+			stream.start();
+			return;
+		}
+
+		if (stream == null) {
+			//it was reset or has finished, let the other end know if it is still
+			//sending data. Late credit is harmless and the other end may still
+			//be writing out what we sent, so that gets no reset
+			if (type == FRAME_DATA || type == FRAME_FIN) {
+				sendFrame(streamId, FRAME_RESET, null, 0, 0);
+			}
+			return;
+		}
+
+		switch (type) {
+		case FRAME_DATA:
+			byte [] copy = new byte [length];
+			System.arraycopy(data, offset, copy, 0, length);
+			stream.dataReceived(copy);
+			break;
+		case FRAME_FIN:
+			stream.finReceived();
+			break;
+		case FRAME_CREDIT:
+			stream.creditReceived(Packet.readIntFromBytes(data, offset));
+			break;
+		case FRAME_RESET:
+			stream.reset(false);
+			break;
+		default:
+			Log.get().println(Log.LEVEL_WARN, "Unknown frame type:" + type + " (stream:" + streamId + ").");
+		}
+	}
+
+	@Override
+	public void close() {
+		MuxStream [] toClose;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			toClose = streams.values().toArray(new MuxStream [streams.size()]);
+			streams.clear();
+			outgoing.clear();
+		}
+		for (MuxStream stream : toClose) {
+			stream.reset(false);
+		}
+	}
+
+	/**
+	 * The other end of the tunnel connection never closes half of it, it
+	 * only goes away entirely.
+	 */
+	@Override
+	public void closeRead() {
+		close();
+	}
+
+	@Override
+	public void closeWrite() {
+		close();
+	}
+}
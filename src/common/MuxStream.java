@@ -0,0 +1,233 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+
+/**
+ * One local tcp connection carried by a MuxPortCommunicator. This thread
+ * sends what the socket receives as long as the other end has given credit
+ * for it, a second thread writes out what the other end sent so a slow local
+ * application only holds up its own stream.
+ */
+public class MuxStream extends Thread {
+	private MuxPortCommunicator mux;
+	private int id;
+	/** null until connected when the stream was opened by the other end */
+	private Socket socket;
+	private InetSocketAddress connectTo;
+	/** bytes we may still send before the other end gives more credit */
+	private int sendCredit;
+	/** bytes written out locally since credit was last given back */
+	private int unCredited;
+	private LinkedList<byte []> writes;
+	private boolean finReceived;
+	private boolean finSent;
+	private boolean writeDone;
+	private boolean closed;
+	private Thread writer;
+
+	/**
+	 * @param socket the local socket, or null to connect to connectTo first
+	 */
+	MuxStream(MuxPortCommunicator mux, int id, Socket socket, InetSocketAddress connectTo) {
+		super("Mux stream " + id);
+		this.mux = mux;
+		this.id = id;
+		this.socket = socket;
+		this.connectTo = connectTo;
+		this.sendCredit = MuxPortCommunicator.STREAM_WINDOW;
+		this.writes = new LinkedList<byte []>();
+		this.writer = new Thread("Mux stream writer " + id) {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+	}
+
+	public int getStreamId() {
+		return id;
+	}
+
+	@Override
+	public void run() {
+		if (socket == null) {
+			Socket connected;
+			try {
+				connected = new Socket(connectTo.getAddress(), connectTo.getPort());
+				connected.setTcpNoDelay(true);
+			} catch (IOException e) {
+				Log.get().println(Log.LEVEL_WARN, "Stream connect failed (stream:" + id + "): " + e.getMessage());
+				reset(true);
+				return;
+			}
+			synchronized (this) {
+				socket = connected;
+				if (closed) {
+					closeSocket(connected);
+					return;
+				}
+			}
+		}
+		writer.start();
+
+		byte [] data = new byte [MuxPortCommunicator.MAX_FRAME_DATA];
+		try {
+			InputStream in = socket.getInputStream();
+			while (true) {
+				int room;
+				synchronized (this) {
+					while (sendCredit <= 0 && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					room = Math.min(sendCredit, data.length);
+				}
+
+				int len = in.read(data, 0, room);
+				//-1 means EOF
+				if (len == -1) {
+					break;
+				}
+				synchronized (this) {
+					if (closed) {
+						return;
+					}
+					sendCredit -= len;
+				}
+				mux.sendFrame(id, MuxPortCommunicator.FRAME_DATA, data, 0, len);
+			}
+		} catch (IOException e) {
+			reset(true);
+			return;
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		mux.sendFrame(id, MuxPortCommunicator.FRAME_FIN, null, 0, 0);
+		synchronized (this) {
+			finSent = true;
+		}
+		finishIfDone();
+	}
+
+	private void writeLoop() {
+		try {
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				byte [] data;
+				synchronized (this) {
+					while (writes.isEmpty() && !finReceived && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					if (writes.isEmpty()) {
+						//the other end is done sending and it has all been written
+						break;
+					}
+					data = writes.removeFirst();
+				}
+
+				out.write(data);
+
+				int credit = 0;
+				synchronized (this) {
+					unCredited += data.length;
+					if (unCredited >= MuxPortCommunicator.STREAM_WINDOW / 2) {
+						credit = unCredited;
+						unCredited = 0;
+					}
+				}
+				if (credit > 0) {
+					mux.sendCredit(id, credit);
+				}
+			}
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			reset(true);
+			return;
+		} catch (InterruptedException e) {
+			return;
+		}
+
+		synchronized (this) {
+			writeDone = true;
+		}
+		finishIfDone();
+	}
+
+	synchronized void dataReceived(byte [] data) {
+		if (closed) {
+			return;
+		}
+		writes.add(data);
+		notifyAll();
+	}
+
+	synchronized void finReceived() {
+		finReceived = true;
+		notifyAll();
+	}
+
+	synchronized void creditReceived(int bytes) {
+		sendCredit += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Drops the stream and closes its socket.
+	 * @param tellOtherEnd send a reset so the other end drops it too
+	 */
+	void reset(boolean tellOtherEnd) {
+		Socket toClose;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			toClose = socket;
+			notifyAll();
+		}
+		closeSocket(toClose);
+		mux.removeStream(this);
+		if (tellOtherEnd) {
+			mux.sendFrame(id, MuxPortCommunicator.FRAME_RESET, null, 0, 0);
+		}
+		Log.get().println(Log.LEVEL_INFO, "Stream reset (stream:" + id + ").");
+	}
+
+	/**
+	 * Closes the stream once both directions are finished.
+	 */
+	private void finishIfDone() {
+		Socket toClose;
+		synchronized (this) {
+			if (closed || !finSent || !writeDone) {
+				return;
+			}
+			closed = true;
+			toClose = socket;
+		}
+		closeSocket(toClose);
+		mux.removeStream(this);
+		Log.get().println(Log.LEVEL_INFO, "Stream closed (stream:" + id + ").");
+	}
+
+	private static void closeSocket(Socket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -2,8 +2,10 @@ package common;
 
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import org.xbill.DNS.CNAMERecord;
@@ -17,6 +19,13 @@ import org.xbill.DNS.TextParseException;
  * |   8bits  |   8bits  |   8bits  |   8bits  |   8bits  |          multibyte            |
  * | clientID | packetID |oldestSeen|   flags  | checksum |        packet content         |
  * ````````````````````````````````````````````````````````````````````````````````````````
+ *
+ * Connections that negotiated 16 bit packet ids set FLAG_WIDE_IDS and put
+ * the high bytes of packetID and oldestSeen between the checksum and the
+ * content. Connections that negotiated selective acks may set FLAG_SACK and
+ * follow those with a length byte and a bitmap of the packets received past
+ * oldestSeen+1: bit i (lowest bit of the first byte is 0) is packet 
+ * oldestSeen+2+i.
  */
 public abstract class Packet  {
 	//TODO: check if decoded size is buggy in this object
@@ -67,15 +76,17 @@ public abstract class Packet  {
 	/** The client sender's id */
 	private short clientID;
 	/** The packet id of the dns message sent through the internet */
-	private byte packetID;
+	private int packetID;
 	/** A checksum of everything summed */
 	private byte checksum;
 	/** The last packet id seen from the remote host */
-	private byte lastPidSeen;
+	private int lastPidSeen;
 	/** Flags for this packet's content */
 	private byte flags;
 	/** bytes of data */
 	private byte [] dataContent;
+	/** selective ack bitmap, null if there is none */
+	private byte [] sack;
 
 	private byte encodingBase;
 
@@ -86,6 +97,12 @@ public abstract class Packet  {
 	public static final int OFFSET_FLAGS         = 4;
 	public static final int OFFSET_CHECKSUM      = 5;
 	public static final int FIXED_HEADER_SIZE    = 6;
+	public static final int OFFSET_PACKETID_HIGH      = 6;
+	public static final int OFFSET_LAST_PID_SEEN_HIGH = 7;
+	/** header bytes added by FLAG_WIDE_IDS */
+	public static final int WIDE_IDS_SIZE        = 2;
+	/** the longest selective ack bitmap, in bytes */
+	public static final int MAX_SACK_SIZE        = 16;
 
 	public static final byte ENC_SAFE16  = 1;
 	public static final byte ENC_FULL63  = 2;
@@ -101,6 +118,10 @@ public abstract class Packet  {
 	public static final byte FLAG_SPECIAL      = (1 << 2);
 	/** The assembly is compressed */
 	public static final byte FLAG_COMPRESSED   = (1 << 3);
+	/** The packet ids are 16 bits, the high bytes follow the checksum */
+	public static final byte FLAG_WIDE_IDS     = (1 << 4);
+	/** A selective ack bitmap follows the header */
+	public static final byte FLAG_SACK         = (byte) (1 << 7);
 
 	/** This is the last write packet in the data stream (TCP only) */
 	public static final byte FLAG_END_WRITE    = (1 << 5);
@@ -113,7 +134,7 @@ public abstract class Packet  {
 	 * @param checksum2
 	 * @param dataContent The data of the packet, this variable is adopted.
 	 */
-	protected Packet(short clientID, byte packetID, byte flags, byte encBase, byte lastPidSeen, byte checksum, byte[] dataContent) {
+	protected Packet(short clientID, int packetID, byte flags, byte encBase, int lastPidSeen, byte checksum, byte[] dataContent) {
 		this();
 		setAllFields(clientID, packetID, flags, lastPidSeen, checksum, dataContent);
 		setEncodingBase(encBase);
@@ -133,27 +154,60 @@ public abstract class Packet  {
 		}
 
 		short clientID = (short) readShortFromBytes(rawBytes, OFFSET_CLIENTID);
-		byte packetID = rawBytes[OFFSET_PACKETID];
-		byte lastPidSeen = rawBytes[OFFSET_LAST_PID_SEEN];
+		int packetID = rawBytes[OFFSET_PACKETID] & 0xff;
+		int lastPidSeen = rawBytes[OFFSET_LAST_PID_SEEN] & 0xff;
 		byte flags = rawBytes[OFFSET_FLAGS];
 		byte checksum = rawBytes[OFFSET_CHECKSUM];
 
-		int contentLength = rawBytes.length - FIXED_HEADER_SIZE;
+		int headerSize = FIXED_HEADER_SIZE;
+		if ((flags & FLAG_WIDE_IDS) != 0) {
+			if (rawBytes.length < FIXED_HEADER_SIZE + WIDE_IDS_SIZE) {
+				throw new ProtocolException("Packet too short");
+			}
+			packetID |= (rawBytes[OFFSET_PACKETID_HIGH] & 0xff) << 8;
+			lastPidSeen |= (rawBytes[OFFSET_LAST_PID_SEEN_HIGH] & 0xff) << 8;
+			headerSize += WIDE_IDS_SIZE;
+		}
+		byte [] sack = null;
+		if ((flags & FLAG_SACK) != 0) {
+			if (rawBytes.length < headerSize + 1) {
+				throw new ProtocolException("Packet too short");
+			}
+			int sackLength = rawBytes[headerSize] & 0xff;
+			if (sackLength > MAX_SACK_SIZE || rawBytes.length < headerSize + 1 + sackLength) {
+				throw new ProtocolException("Bad selective ack");
+			}
+			sack = new byte [sackLength];
+			System.arraycopy(rawBytes, headerSize + 1, sack, 0, sackLength);
+			headerSize += 1 + sackLength;
+		}
+
+		int contentLength = rawBytes.length - headerSize;
 		byte [] dataContent = new byte[contentLength];
-		System.arraycopy(rawBytes, FIXED_HEADER_SIZE, dataContent, 0, contentLength);
+		System.arraycopy(rawBytes, headerSize, dataContent, 0, contentLength);
 
 		this.setAllFields(clientID, packetID, flags, lastPidSeen, checksum, dataContent);
+		this.sack = sack;
 	}
 
 	protected byte [] encodePacket() throws ProtocolException {
-		byte [] rawBytes = new byte[getDataContent().length + FIXED_HEADER_SIZE];
+		byte [] rawBytes = new byte[getDataContent().length + getHeaderSize()];
 		writeShortToBytes(rawBytes, OFFSET_CLIENTID, getClientID());
-		rawBytes[OFFSET_PACKETID] = getPacketID();
-		rawBytes[OFFSET_LAST_PID_SEEN] = getLastPidSeen();
+		rawBytes[OFFSET_PACKETID] = (byte) getPacketID();
+		rawBytes[OFFSET_LAST_PID_SEEN] = (byte) getLastPidSeen();
 		rawBytes[OFFSET_FLAGS] = getFlags();
 		rawBytes[OFFSET_CHECKSUM] = getChecksum();
+		if (hasWideIds()) {
+			rawBytes[OFFSET_PACKETID_HIGH] = (byte) (getPacketID() >> 8);
+			rawBytes[OFFSET_LAST_PID_SEEN_HIGH] = (byte) (getLastPidSeen() >> 8);
+		}
+		if (sack != null) {
+			int sackOffset = hasWideIds() ? FIXED_HEADER_SIZE + WIDE_IDS_SIZE : FIXED_HEADER_SIZE;
+			rawBytes[sackOffset] = (byte) sack.length;
+			System.arraycopy(sack, 0, rawBytes, sackOffset + 1, sack.length);
+		}
 
-		System.arraycopy(getDataContent(), 0, rawBytes, FIXED_HEADER_SIZE, getDataContent().length);
+		System.arraycopy(getDataContent(), 0, rawBytes, getHeaderSize(), getDataContent().length);
 		return rawBytes;
 	}
 
@@ -176,11 +230,11 @@ public abstract class Packet  {
 	}
 
 	public boolean isChecksumValid() {
-		return (checksum == calcChecksum(clientID, packetID, lastPidSeen, flags, dataContent));
+		return (checksum == calcChecksum(clientID, packetID, lastPidSeen, flags, sack, dataContent));
 	}
 
 	public void updateChecksum() {
-		checksum = calcChecksum(clientID, packetID, lastPidSeen, flags, dataContent);
+		checksum = calcChecksum(clientID, packetID, lastPidSeen, flags, sack, dataContent);
 	}
 
 	public byte getChecksum() {
@@ -191,7 +245,7 @@ public abstract class Packet  {
 		this.clientID = clientID;
 	}
 
-	public void setPacketID(byte packetID) {
+	public void setPacketID(int packetID) {
 		this.packetID = packetID;
 	}
 
@@ -203,7 +257,7 @@ public abstract class Packet  {
 		return clientID;
 	}
 
-	public byte getPacketID() {
+	public int getPacketID() {
 		return packetID;
 	}
 
@@ -211,8 +265,15 @@ public abstract class Packet  {
 		return dataContent;
 	}
 
-	private static byte calcChecksum(short clientID, byte packetID, byte lastPidSeen, byte flags, byte [] contents) {
-		int sum = clientID + packetID + flags + lastPidSeen;
+	private static byte calcChecksum(short clientID, int packetID, int lastPidSeen, byte flags, byte [] sack, byte [] contents) {
+		//the low bytes are summed as signed bytes like they always were
+		int sum = clientID + (byte)packetID + flags + (byte)lastPidSeen;
+		sum += (byte)(packetID >> 8) + (byte)(lastPidSeen >> 8);
+		if (sack != null) {
+			for (byte b : sack) {
+				sum += b;
+			}
+		}
 		sum += contents.length;
 		for (byte b : contents) {
 			sum += b;
@@ -229,7 +290,7 @@ public abstract class Packet  {
 	 * @param lastPidSeen
 	 * @param dataContent
 	 */
-	public void setAllFields(short clientID, byte packetID, byte flags, byte lastPidSeen, byte checksum, byte[] dataContent) {
+	public void setAllFields(short clientID, int packetID, byte flags, int lastPidSeen, byte checksum, byte[] dataContent) {
 		this.clientID = clientID;
 		this.packetID = packetID;
 		this.flags = flags;
@@ -246,14 +307,34 @@ public abstract class Packet  {
 		this.dataContent = dataContent;
 	}
 
-	public byte getLastPidSeen() {
+	public int getLastPidSeen() {
 		return lastPidSeen;
 	}
 
-	public void setLastPidSeen(byte lastPidSeen) {
+	public void setLastPidSeen(int lastPidSeen) {
 		this.lastPidSeen = lastPidSeen;
 	}
 
+	/**
+	 * @return the selective ack bitmap, or null if there is none
+	 */
+	public byte [] getSack() {
+		return sack;
+	}
+
+	/**
+	 * @param sack the selective ack bitmap, null or empty for none
+	 */
+	public void setSack(byte [] sack) {
+		if (sack == null || sack.length == 0) {
+			this.sack = null;
+			this.flags &= ~FLAG_SACK;
+		} else {
+			this.sack = sack;
+			this.flags |= FLAG_SACK;
+		}
+	}
+
 	public byte getFlags() {
 		return flags;
 	}
@@ -278,6 +359,21 @@ public abstract class Packet  {
 		return 0 != (this.flags & FLAG_COMPRESSED);
 	}
 
+	public boolean hasWideIds() {
+		return 0 != (this.flags & FLAG_WIDE_IDS);
+	}
+
+	/**
+	 * @return the bytes in front of the content, more with wide ids or a selective ack
+	 */
+	public int getHeaderSize() {
+		int size = hasWideIds() ? FIXED_HEADER_SIZE + WIDE_IDS_SIZE : FIXED_HEADER_SIZE;
+		if (sack != null) {
+			size += 1 + sack.length;
+		}
+		return size;
+	}
+
 	public int getEncodingBase() {
 		return encodingBase;
 	}
@@ -343,50 +439,99 @@ public abstract class Packet  {
 	public final Name encodeAsName(String domain) throws ProtocolException {
 		assert (isChecksumValid() == true);
 
-		byte [] rawBytes = encodePacket();
+		String nameToSplit = new String(encodeAsLabelSymbols());
+
+		String nameAsDomain = stringToDomain(nameToSplit, domain);
+
+		assert nameAsDomain.length() <= DNSSizes.MAX_DOMAIN_LEN;
+		try {
+			return Name.fromString(nameAsDomain);
+		} catch (TextParseException e) {
+			Log.get().exception(Log.LEVEL_ERROR, e);
+			ProtocolException pe = new ProtocolException("Name exception");
+			throw pe;
+		}
+	}
 
-		String nameToSplit;
+	/**
+	 * @return the encoding type character followed by the encoded packet,
+	 *         before it is split into labels
+	 */
+	public byte [] encodeAsLabelSymbols() throws ProtocolException {
+		byte [] rawBytes = encodePacket();
 
 		switch (getEncodingBase()) {
 		default:
 		case ENC_SAFE16:
 			//the 'a' says its type ENC_SAFE16
-			nameToSplit = 'a' + new String(Base16Alpha.encodeBase16(rawBytes));
-			break;
+			byte [] encBytes = new byte [rawBytes.length*2 + 1];
+			encBytes[0] = 'a';
+			Base16Alpha.encodeBase16(rawBytes, 0, rawBytes.length, encBytes, 1);
+			return encBytes;
 		case ENC_FULL63:
 			//the 'b' says its type ENC_FULL63
-			nameToSplit = 'b' + encodeLengthThenString(rawBytes, base63Converter);
-			break;
+			return encodeLengthThenBytes(rawBytes, base63Converter, 'b');
 		case ENC_HEX0x20:
 			//the 'h' says its type ENC_HEX0x20
-			nameToSplit = 'h' + encodeLengthThenString(rawBytes, hex0x20HackConverter);
-			break;
+			return encodeLengthThenBytes(rawBytes, hex0x20HackConverter, 'h');
 		}
+	}
 
-		String nameAsDomain = stringToDomain(nameToSplit, domain);
+	private byte [] encodeLengthThenBytes(byte[] rawBytes, BaseConverter converter, char typeChar) {
+		byte [] encBytes = new byte [converter.encodedSize(rawBytes.length) + converter.encodedSize(2) + 1];
+		encBytes[0] = (byte) typeChar;
+		int numBytesEnc = 1 + encodeLengthThenData(rawBytes, converter, encBytes, 1);
 
-		assert nameAsDomain.length() <= DNSSizes.MAX_DOMAIN_LEN;
-		try {
-			return Name.fromString(nameAsDomain);
-		} catch (TextParseException e) {
-			Log.get().exception(Log.LEVEL_ERROR, e);
-			ProtocolException pe = new ProtocolException("Name exception");
-			throw pe;
+		if (numBytesEnc == encBytes.length) {
+			return encBytes;
 		}
+		byte [] trimmed = new byte [numBytesEnc];
+		System.arraycopy(encBytes, 0, trimmed, 0, numBytesEnc);
+		return trimmed;
 	}
 
-	private String encodeLengthThenString(byte[] rawBytes, BaseConverter converter) {
-		byte [] encBytes = new byte [converter.encodedSize(rawBytes.length) + converter.encodedSize(2) + 1];
+	/**
+	 * Encodes the 2 byte length of rawBytes then rawBytes itself.
+	 * @return number of symbols written to encBytes
+	 */
+	private static int encodeLengthThenData(byte [] rawBytes, BaseConverter converter, byte [] encBytes, int encStart) {
 		byte [] len = {(byte) rawBytes.length, (byte) (rawBytes.length>>8)};
-		int numBytesEnc = converter.encode(len, 0, 2, encBytes, 0);
-		numBytesEnc += converter.encode(rawBytes, 0, rawBytes.length, encBytes, numBytesEnc);
+		int numBytesEnc = converter.encode(len, 0, 2, encBytes, encStart);
+		numBytesEnc += converter.encode(rawBytes, 0, rawBytes.length, encBytes, encStart + numBytesEnc);
+		return numBytesEnc;
+	}
+
+	/**
+	 * Writes this packet as the rdata of a TXT answer, the same bytes encodeAsTxt
+	 * would produce but without building the record.
+	 */
+	public void writeTxtRdata(ByteBuffer out) throws ProtocolException {
+		assert (isChecksumValid() == true);
+		byte [] rawBytes = encodePacket();
+		byte [] encBytes = new byte [txtConverter.encodedSize(rawBytes.length) + txtConverter.encodedSize(2)];
+		int numBytes = encodeLengthThenData(rawBytes, txtConverter, encBytes, 0);
+		DNSWire.writeCharacterStrings(out, encBytes, 0, numBytes);
+	}
 
-		return new String(encBytes, 0, numBytesEnc);
+	/**
+	 * Writes this packet as the rdata of a CNAME answer, the same bytes
+	 * encodeAsCname would produce but without building the record.
+	 */
+	public void writeCnameRdata(ByteBuffer out) throws ProtocolException {
+		assert (isChecksumValid() == true);
+		byte [] symbols = encodeAsLabelSymbols();
+		DNSWire.writeLabels(out, symbols, 0, symbols.length);
 	}
 
 	public TXTRecord encodeAsTxt(Name name, int dclass, long ttl) throws ProtocolException {
 		assert (isChecksumValid() == true);
-		return new TXTRecord(name, dclass, ttl, encodeAsString(txtConverter));
+		String encoded = encodeAsString(txtConverter);
+		//a single TXT string holds at most 255 bytes
+		ArrayList<String> strings = new ArrayList<String>();
+		for (int i=0; i<encoded.length(); i+=DNSWire.MAX_TXT_STRING) {
+			strings.add(encoded.substring(i, Math.min(encoded.length(), i + DNSWire.MAX_TXT_STRING)));
+		}
+		return new TXTRecord(name, dclass, ttl, strings);
 	}
 
 	public CNAMERecord encodeAsCname(Name name, int dclass, long ttl) throws ProtocolException {
@@ -398,11 +543,9 @@ public abstract class Packet  {
 		byte [] rawBytes = encodePacket();
 
 		byte [] encBytes = new byte [baseConverter.encodedSize(rawBytes.length) + baseConverter.encodedSize(2)];
-		byte [] len = {(byte) rawBytes.length, (byte) (rawBytes.length>>8)};
-		int numBytesHeader = baseConverter.encode(len, 0, 2, encBytes, 0);
-		int numBytesData = baseConverter.encode(rawBytes, 0, rawBytes.length, encBytes, numBytesHeader);
+		int numBytes = encodeLengthThenData(rawBytes, baseConverter, encBytes, 0);
 
-		return new String(encBytes, 0, numBytesHeader + numBytesData);
+		return new String(encBytes, 0, numBytes);
 	}
 
 	@Override
@@ -410,8 +553,8 @@ public abstract class Packet  {
 		String flags = (isAssemblyEnd()?" ASM_END":"") + (isNoOp()?" NO_OP":"") + (isSpecial()?" SPCL":"" + (isCompressed()?" LZMA":"") + (isEndOfWrite() ? " END_WR":"") + (isEndOfRead() ? " END_RD":""));
 
 		return "Packet[ClientID:" + (this.getClientID() & 0xFFFF) +
-			" PacketID:" + (this.getPacketID() & 0xFF) +
-			" Flags:" + flags + " Data:" + getDataContent().length + "bytes ack:" + (getLastPidSeen()&0xFF) + " checksum:" + (isChecksumValid()?"ok":"bad") + "]";
+			" PacketID:" + this.getPacketID() +
+			" Flags:" + flags + " Data:" + getDataContent().length + "bytes ack:" + getLastPidSeen() + " checksum:" + (isChecksumValid()?"ok":"bad") + "]";
 	}
 
 	/**
@@ -454,6 +597,51 @@ public abstract class Packet  {
 
 	}
 
+	/**
+	 * @param maxPacketSize the udp payload size negotiated with EDNS0
+	 * @return Number of bytes that could fit in a server packet.
+	 */
+	public static int maxDataLength(String domain, int truncationAllowance, int encodingType, int maxPacketSize) {
+		int plainLength = maxDataLength(domain, truncationAllowance, encodingType);
+		//names never get longer than MAX_DOMAIN_LEN, only TXT answers grow
+		if (maxPacketSize <= DNSSizes.MAX_PACKET_SIZE || encodingType != ENC_TXT) {
+			return plainLength;
+		}
+
+		//               full udp packet      fixed size                for other headers                              longest question + type and class   answer ptr and fixed fields  the OPT record
+		int remaining = maxPacketSize - DNSSizes.DNS_HEADER_SIZE - truncationAllowance - DNSSizes.DNS_FUDGE_FACTOR - (DNSSizes.MAX_DOMAIN_LEN + 4) - (2 + DNSWire.RR_FIXED_SIZE) - DNSSizes.OPT_RECORD_SIZE;
+		//every 255 chars of a TXT answer need a length byte
+		int numChars = remaining - (remaining / (DNSWire.MAX_TXT_STRING + 1) + 1);
+		//minus the packet length in front
+		numChars -= txtConverter.encodedSize(2);
+
+		return Math.max(plainLength, txtConverter.decodedSize(numChars));
+	}
+
+	/**
+	 * @return the most bytes writeTxtRdata takes for this packet
+	 */
+	public int txtRdataLength() {
+		int numChars = txtConverter.encodedSize(getDataContent().length + getHeaderSize()) + txtConverter.encodedSize(2);
+		//plus a length byte for every 255 chars
+		return numChars + (numChars + DNSWire.MAX_TXT_STRING - 1) / DNSWire.MAX_TXT_STRING;
+	}
+
+	/**
+	 * The other way around from txtRdataLength.
+	 * @return the most data bytes a packet can hold and still be written as 
+	 *         TXT in rdataLength bytes, -1 if not even an empty one fits
+	 */
+	public static int maxTxtDataLength(int rdataLength) {
+		int numChars = rdataLength - (rdataLength / (DNSWire.MAX_TXT_STRING + 1) + 1);
+		numChars -= txtConverter.encodedSize(2);
+		if (numChars <= 0) {
+			return -1;
+		}
+		int dataLength = txtConverter.decodedSize(numChars) - FIXED_HEADER_SIZE;
+		return dataLength < 0 ? -1 : dataLength;
+	}
+
 	public boolean isEndOfWrite() {
 		return (getFlags() & FLAG_END_WRITE) != 0;
 	}
@@ -488,13 +676,31 @@ public abstract class Packet  {
 	}
 
 	public static byte [] decodeTxtRecord(TXTRecord record) throws IOException {
-		byte [] decodeStringBytes = (byte[])record.getStringsAsByteArrays().get(0);
+		//long answers are split over several strings
+		List<?> strings = record.getStringsAsByteArrays();
+		int numSymbols = 0;
+		for (int i=0; i<strings.size(); i++) {
+			numSymbols += ((byte[])strings.get(i)).length;
+		}
+		byte [] decodeStringBytes = new byte [numSymbols];
+		int offset = 0;
+		for (int i=0; i<strings.size(); i++) {
+			byte [] string = (byte[])strings.get(i);
+			System.arraycopy(string, 0, decodeStringBytes, offset, string.length);
+			offset += string.length;
+		}
+		return decodeTxtSymbols(decodeStringBytes, 0, decodeStringBytes.length);
+	}
 
+	/**
+	 * Decodes the symbols of a TXT answer back into raw packet bytes.
+	 */
+	public static byte [] decodeTxtSymbols(byte [] symbols, int offset, int len) throws IOException {
 		byte [] pktSizeBytes = {0,0};
-		int bytesRead = txtConverter.decode(decodeStringBytes, 0, decodeStringBytes.length, 2, pktSizeBytes);
+		int bytesRead = txtConverter.decode(symbols, offset, len, 2, pktSizeBytes);
 		int pktSize = (pktSizeBytes[0] & 0xff) | ((pktSizeBytes[1] & 0xff) << 8);
 		byte[] rawBytes = new byte[pktSize];
-		txtConverter.decode(decodeStringBytes, bytesRead, decodeStringBytes.length - bytesRead, pktSize, rawBytes);
+		txtConverter.decode(symbols, offset + bytesRead, len - bytesRead, pktSize, rawBytes);
 
 		return rawBytes;
 	}
@@ -504,35 +710,45 @@ public abstract class Packet  {
 	}
 
 	public static byte [] decodeName(Name name, String domain) throws IOException {
-		//the extra toLowerCase calls in here is to prevent against the 0x20 dns hack
-		//from interfering with our data
-
 		String toParse = name.toString();
-		String toParseLower = toParse.toLowerCase(Locale.ENGLISH);
 		if (domain != null && !domain.equals("")) {
 			//remove the domain name leading and trailing
-			int stripTo = toParseLower.lastIndexOf("." + domain.toLowerCase(Locale.ENGLISH) + ".");
+			int stripTo = toParse.toLowerCase(Locale.ENGLISH).lastIndexOf("." + domain.toLowerCase(Locale.ENGLISH) + ".");
 			if (stripTo == -1) {
 				Log.get().println(Log.LEVEL_ERROR, "Domain name missing from Name entry. (Name: \"" + name + "\")");
 			} else {
 				toParse = toParse.substring(0, stripTo);
-				toParseLower = toParseLower.substring(0, stripTo);
 			}
 		}
 		//remove all dots
-		toParse = removeDots(toParse);
-		toParseLower = removeDots(toParseLower);
+		byte [] symbols = removeDots(toParse).getBytes();
+		return decodeLabelSymbols(symbols, 0, symbols.length);
+	}
+
+	/**
+	 * Decodes the symbols of a name (the labels in front of the domain, with
+	 * the dots taken out) back into raw packet bytes.
+	 * The case insensitive encodings are lowercased in place, to keep the
+	 * 0x20 dns hack from interfering with our data.
+	 */
+	public static byte [] decodeLabelSymbols(byte [] symbols, int offset, int len) throws IOException {
+		if (len < 1) {
+			throw new ProtocolException("Packet too small");
+		}
 
 		byte [] rawBytes;
-		switch (Character.toLowerCase(toParse.charAt(0))) {
+		switch (Character.toLowerCase((char) symbols[offset])) {
 		case 'a':
-			rawBytes = Base16Alpha.decodeBase16(toParseLower.getBytes(), 1);
+			lowerCase(symbols, offset + 1, len - 1);
+			rawBytes = new byte [(len - 1)/2];
+			Base16Alpha.decodeBase16(symbols, offset + 1, len - 1, rawBytes, 0);
 			break;
 		case 'b': //do not lowercase this one
-			rawBytes = decodeLengthThenString(toParse.getBytes(), base63Converter);
+			rawBytes = decodeLengthThenSymbols(symbols, offset + 1, len - 1, base63Converter);
 			break;
 		case 'h':
-			rawBytes = decodeLengthThenString(toParseLower.getBytes(), hex0x20HackConverter);
+			lowerCase(symbols, offset + 1, len - 1);
+			rawBytes = decodeLengthThenSymbols(symbols, offset + 1, len - 1, hex0x20HackConverter);
 			break;
 		default:
 			throw new ProtocolException("Bad encoding type");
@@ -545,14 +761,22 @@ public abstract class Packet  {
 		return rawBytes;
 	}
 
-	private static byte[] decodeLengthThenString(byte[] decodeStringBytes, BaseConverter converter)
+	private static void lowerCase(byte [] symbols, int offset, int len) {
+		for (int i=offset; i<offset+len; i++) {
+			if (symbols[i] >= 'A' && symbols[i] <= 'Z') {
+				symbols[i] += 'a' - 'A';
+			}
+		}
+	}
+
+	private static byte[] decodeLengthThenSymbols(byte[] decodeStringBytes, int offset, int len, BaseConverter converter)
 			throws IOException {
 		byte[] rawBytes;
 		byte [] pktSizeBytes = {0,0};
-		int bytesRead = converter.decode(decodeStringBytes, 1, decodeStringBytes.length - 1, 2, pktSizeBytes);
+		int bytesRead = converter.decode(decodeStringBytes, offset, len, 2, pktSizeBytes);
 		int pktSize = (pktSizeBytes[0]&0xff) | ((pktSizeBytes[1]&0xff) << 8);
 		rawBytes = new byte[pktSize];
-		converter.decode(decodeStringBytes, 1 + bytesRead, decodeStringBytes.length - 1 - bytesRead, pktSize, rawBytes);
+		converter.decode(decodeStringBytes, offset + bytesRead, len - bytesRead, pktSize, rawBytes);
 		return rawBytes;
 	}
 
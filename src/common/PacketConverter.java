@@ -8,7 +8,7 @@ public class PacketConverter {
 	public PacketConverter() {
 	}
 	
-	public Packet[] convertFromBytes(PacketFactory packFact, byte [] realData, int dataLen, short clientId, byte packetIdStart, boolean splitPackets, boolean endOfWrite, boolean endOfRead) {
+	public Packet[] convertFromBytes(PacketFactory packFact, byte [] realData, int dataLen, short clientId, int packetIdStart, boolean splitPackets, boolean endOfWrite, boolean endOfRead) {
 		int bytesPerPacket = packFact.getMaxPacketSize();
 		
 		// force round up
@@ -24,7 +24,7 @@ public class PacketConverter {
 			boolean isLastPacket = (i == numPackets - 1); 
 			byte flags = (splitPackets || isLastPacket) ? Packet.FLAG_END_ASSEMBLY : 0;
 			int packetLen = (bytesRemaining >= bytesPerPacket) ? bytesPerPacket : bytesRemaining;
-			pkts[i] = packFact.createPacket(realData, i * bytesPerPacket, packetLen, clientId, (byte) (packetIdStart + i), flags);
+			pkts[i] = packFact.createPacket(realData, i * bytesPerPacket, packetLen, clientId, packetIdStart + i, flags);
 			bytesRemaining -= packetLen;
 		}
 		
@@ -2,7 +2,9 @@ package common;
 
 public interface PacketFactory {
 	int getMaxPacketSize();
-	Packet createPacket(byte [] data, int dataOffset, int dataLen, short clientId, byte packetId, byte flags);
+	Packet createPacket(byte [] data, int dataOffset, int dataLen, short clientId, int packetId, byte flags);
 	Packet createNoOp(short clientId);
 	Packet createConnectionClosed(short clientId);
+	/** true if the packets carry 16 bit packet ids, see Packet.FLAG_WIDE_IDS */
+	boolean hasWideIds();
 }
@@ -31,6 +31,10 @@ public abstract class PortCommunicator extends Thread {
 	}
 
 	public abstract TransmissionUnit receiveIncoming();
+	/**
+	 * @return true if receiveIncoming has a unit waiting
+	 */
+	public abstract boolean hasIncoming();
 	//public abstract boolean isDefunct();
 	public abstract void sendPacket(byte [] data);
 	//public abstract boolean incomingExhausted();
@@ -0,0 +1,77 @@
+package common;
+
+/**
+ * How long a connection waits for an ack before sending a packet again. It
+ * starts at the late timer agreed on when the connection was made and then
+ * follows the measured round trip: the smoothed round trip time plus four
+ * times its variation. Each timeout doubles it until an ack of a packet that
+ * was only sent once brings a new measurement (packets sent more than once
+ * can't tell which copy was acked, so they aren't measured).
+ */
+public class RetransmitTimer {
+	/** weight of a new sample in the smoothed round trip time */
+	public static final double RTT_GAIN = 0.125;
+	/** weight of a new sample in the round trip variation */
+	public static final double VAR_GAIN = 0.25;
+	/** the timeout never goes below or above these, in ms */
+	public static final int MIN_TIMEOUT = 200;
+	public static final int MAX_TIMEOUT = 10000;
+
+	private double srtt;
+	private double rttvar;
+	/** the timeout before backing off */
+	private int timeout;
+	/** how many times it has doubled since the last measurement */
+	private int backOffs;
+
+	/**
+	 * @param initialTimeout ms to wait until a round trip has been measured
+	 */
+	public RetransmitTimer(int initialTimeout) {
+		this.srtt = -1;
+		this.timeout = clamp(initialTimeout);
+	}
+
+	/**
+	 * A packet that was only sent once has been acked.
+	 * @param rtt ms from sending it to the ack
+	 */
+	public synchronized void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+		} else {
+			rttvar += VAR_GAIN * (Math.abs(srtt - rtt) - rttvar);
+			srtt += RTT_GAIN * (rtt - srtt);
+		}
+		timeout = clamp((int) Math.ceil(srtt + 4 * rttvar));
+		backOffs = 0;
+	}
+
+	/**
+	 * The oldest packet went unacked for the whole timeout and is being sent again.
+	 */
+	public synchronized void backOff() {
+		if (getTimeout() < MAX_TIMEOUT) {
+			backOffs++;
+		}
+	}
+
+	/**
+	 * @return ms a packet may go unacked before it is sent again
+	 */
+	public synchronized int getTimeout() {
+		return (int) Math.min((long) timeout << backOffs, MAX_TIMEOUT);
+	}
+
+	/**
+	 * @return the smoothed round trip time in ms, -1 until one is measured
+	 */
+	public synchronized int getSmoothedRtt() {
+		return (int) Math.round(srtt);
+	}
+
+	private static int clamp(int timeout) {
+		return Math.max(MIN_TIMEOUT, Math.min(timeout, MAX_TIMEOUT));
+	}
+}
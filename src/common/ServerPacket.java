@@ -9,7 +9,7 @@ import org.xbill.DNS.TXTRecord;
 
 public class ServerPacket extends Packet {
 
-	public ServerPacket(short clientID, byte packetID, byte flags, byte encBase, byte lastPidSeen, byte checksum, byte[] dataContent) {
+	public ServerPacket(short clientID, int packetID, byte flags, byte encBase, int lastPidSeen, byte checksum, byte[] dataContent) {
 		super(clientID, packetID, flags, encBase, lastPidSeen, checksum, dataContent);
 	}
 	
@@ -27,13 +27,21 @@ public class ServerPacket extends Packet {
 		} else {
 			throw new IOException("Invalid record type for server packet.");
 		}
-		
+		return decodeServerPacket(payload);
+	}
+	
+	/**
+	 * @param payload the decoded packet bytes, adopted by the packet
+	 */
+	public static ServerPacket decodeServerPacket(byte [] payload) throws ProtocolException {
 		if (0 != (payload[Packet.OFFSET_FLAGS] & Packet.FLAG_SPECIAL)) {
 			switch (payload[Packet.FIXED_HEADER_SIZE + SpecialServerPacket.OFFSET_SPECIAL_TYPE]) {
 			case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_ACCEPTED:
 				return new ConnectionAcceptedServerPacket(payload);
 			case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_CLOSED:
 				return new ConnectionClosedServerPacket(payload);
+			case SpecialServerPacket.SPECIAL_TYPE_CONNECTION_BATCH_ACCEPTED:
+				return new ConnectionBatchAcceptedServerPacket(payload);
 			default:
 				throw new ProtocolException("Bad special type on special packet.");
 			}
@@ -4,7 +4,9 @@ import java.util.ArrayList;
 
 
 /**
- * Sliding packet window. Depends on the packet id being a single byte
+ * Sliding packet window. Packet ids are 8 or 16 bits and wrap around, the 
+ * window must be at most half the id space so old and new ids can be told
+ * apart.
  */
 public class SlidingWindow {
 	private PacketAndTime [] packets;
@@ -13,22 +15,40 @@ public class SlidingWindow {
 	private ArrayList<Packet> udpBuilding;
 	//private LinkedList<DatagramPacket> udpDone;
 	/** last packet id acked, the packet at packets[front] should always have a packet of lastPidAcked+1 or be null*/
-	private byte lastPidAcked;
+	private int lastPidAcked;
+	/** packet ids wrap around at idMask+1 */
+	private int idMask;
+	/** packets in the window */
+	private int count;
+	/** packets in an unbroken run from the front */
+	private int waiting;
+	/** 
+	 * the packets the other end may still need, least recently sent first.
+	 * Sending one moves it to the end, so picking a packet to send again 
+	 * never looks through the window.
+	 */
+	private PacketAndTime sendOrderHead;
+	private PacketAndTime sendOrderTail;
 	private SlidingWindowListener listener;
+	/** measures the round trip of acked packets, null if not a send window */
+	private RetransmitTimer retransmitTimer;
 	private boolean seenEOR;
 	private boolean seenEOW;
 	
 	/**
-	 * @param windowSize This MUST be SMALLER than the size of a packet id (256)
+	 * @param windowSize This MUST be at most half the packet id space
+	 * @param idMask 0xff for 8 bit packet ids, 0xffff for 16 bit ones
 	 */
-	public SlidingWindow(int windowSize, boolean assemblePackets) {
+	public SlidingWindow(int windowSize, int idMask, boolean assemblePackets) {
+		assert windowSize <= (idMask + 1) / 2;
 		packets = new PacketAndTime[windowSize];
 		for (int i=0; i<windowSize; i++) {
 			packets[i] = new PacketAndTime();
 		}
+		this.idMask = idMask;
 		
 		if (assemblePackets) {
-			udpBuilding = new ArrayList<Packet>(windowSize);
+			udpBuilding = new ArrayList<Packet>();
 			//udpDone = new LinkedList<DatagramPacket>();
 		}
 		//these are dependant on the starting value of ConnectionState.nextPacketId
@@ -41,6 +61,10 @@ public class SlidingWindow {
 		this.listener = listener;
 	}
 	
+	public void setRetransmitTimer(RetransmitTimer retransmitTimer) {
+		this.retransmitTimer = retransmitTimer;
+	}
+	
 	/**
 	 * Adds a packet to the window
 	 * @param packet The packet to add
@@ -57,8 +81,18 @@ public class SlidingWindow {
 		
 		if (packets[destIndex].packet == null) {
 			packets[destIndex].packet = packet;
-			packets[destIndex].timeLastSent = packets[destIndex].timeAdded = System.currentTimeMillis();
+			packets[destIndex].timeLastSent = System.currentTimeMillis();
+			packets[destIndex].sacked = false;
+			packets[destIndex].resent = false;
+			appendToSendOrder(packets[destIndex]);
+			count++;
 			
+			//the packet may join the run at the front to the ones after it
+			if (offsetFromFront == waiting) {
+				while (waiting < packets.length && packets[(front + waiting) % packets.length].packet != null) {
+					waiting++;
+				}
+			}
 			return true;
 		} else {
 			return false;
@@ -68,7 +102,9 @@ public class SlidingWindow {
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 		for (int i=0; i<packets.length; i++) {
-			sb.append("packets[" + i + "] = " + packets[i].packet + System.getProperty("line.separator"));
+			if (packets[i].packet != null) {
+				sb.append("packets[" + i + "] = " + packets[i].packet + System.getProperty("line.separator"));
+			}
 		}
 		return sb.toString();
 	}
@@ -76,47 +112,92 @@ public class SlidingWindow {
 	/**
 	 * Oldest in packet order, not temporal
 	 */
-	public byte getLastPidAcked() {
+	public int getLastPidAcked() {
 		return lastPidAcked;
 	}
 	
 	/**
 	 * @return the packet id of the latest packet waiting to be used 
 	 */
-	public byte getLatestWaitingPid() {
-		return (byte) ((getLastPidAcked() + getLatestWaitingOffset()));
+	public int getLatestWaitingPid() {
+		return (getLastPidAcked() + getLatestWaitingOffset()) & idMask;
 	}
 	
 	/**
-	 * returns a positive offset from the front, considering the wrapping effect
-	 * @return
+	 * @return how many packets are waiting in an unbroken run from the front
 	 */
 	public int getLatestWaitingOffset() {
-		int offset = 0;
-		int packetLoc = (front + offset) % packets.length;
-		while (packets[packetLoc].packet != null) {
-			offset++;
-			packetLoc = (front + offset) % packets.length;
+		return waiting;
+	}
+	
 
-			//dont loop around completely (all packets filled)
-			if (packetLoc == front) {
-				return offset-1;
+	/**
+	 * A selective ack bitmap of the packets waiting past the first missing 
+	 * one, see Packet.getSack.
+	 * @param maxBytes the longest bitmap wanted
+	 * @return the bitmap without trailing empty bytes, or null if no packet 
+	 *         past the missing one is waiting
+	 */
+	public byte [] getSackBitmap(int maxBytes) {
+		//everything waiting is in the run at the front, nothing to tell
+		if (count == waiting) {
+			return null;
+		}
+		byte [] bitmap = null;
+		int length = 0;
+		int bits = Math.min(maxBytes * 8, packets.length - waiting - 1);
+		for (int i=0; i<bits; i++) {
+			if (packets[(front + waiting + 1 + i) % packets.length].packet != null) {
+				if (bitmap == null) {
+					bitmap = new byte [maxBytes];
+				}
+				bitmap[i / 8] |= 1 << (i % 8);
+				length = i / 8 + 1;
 			}
 		}
-		return offset;
+		if (bitmap == null) {
+			return null;
+		}
+		byte [] trimmed = new byte [length];
+		System.arraycopy(bitmap, 0, trimmed, 0, length);
+		return trimmed;
 	}
 	
-
-	protected int getOffsetFromFront(byte pid) {
-		//force it positive
-		int ipid = pid & 0xff;
-		int frontPid = (getLastPidAcked() + 1) & 0xff;
-		
-		if (ipid >= frontPid) {
-			return ipid - frontPid;
-		} else {
-			return ((-frontPid)&0xff) + ipid;
+	/**
+	 * Marks the packets the other end says it has, they are skipped when
+	 * picking packets to send again.
+	 * @param lastPidSeen the cumulative ack the bitmap came with
+	 * @return how many packets were newly marked
+	 */
+	public int markSacked(int lastPidSeen, byte [] bitmap) {
+		int marked = 0;
+		PacketAndTime newest = null;
+		for (int i=0; i<bitmap.length * 8; i++) {
+			if ((bitmap[i / 8] & (1 << (i % 8))) == 0) {
+				continue;
+			}
+			int offset = getOffsetFromFront((lastPidSeen + 2 + i) & idMask);
+			if (offset >= packets.length) {
+				continue;
+			}
+			PacketAndTime pkt = packets[(front + offset) % packets.length];
+			if (pkt.packet != null && !pkt.sacked) {
+				pkt.sacked = true;
+				removeFromSendOrder(pkt);
+				marked++;
+				newest = pkt;
+			}
+		}
+		//a selective ack measures the round trip like a cumulative one
+		if (retransmitTimer != null && newest != null && !newest.resent) {
+			retransmitTimer.sample(System.currentTimeMillis() - newest.timeLastSent);
 		}
+		return marked;
+	}
+
+	protected int getOffsetFromFront(int pid) {
+		//wraps around to a positive offset
+		return (pid - (getLastPidAcked() + 1)) & idMask;
 	}
 	
 	/**
@@ -124,7 +205,7 @@ public class SlidingWindow {
 	 * @param pid the packet to move to
 	 * @return true if there were any changes
 	 */
-	public boolean moveFrontOfWindowToPid(byte pid) {
+	public boolean moveFrontOfWindowToPid(int pid) {
 		int offset = getOffsetFromFront(pid);
 		int ackIndex = (front + offset) % getWindowSize();
 		
@@ -144,11 +225,18 @@ public class SlidingWindow {
 			return false;
 		}
 		
+		//the newest packet acked measures the round trip, unless there were 
+		//several copies of it out and the ack may be for an older one, or the
+		//other end had it a while, waiting past a hole
+		if (retransmitTimer != null && !packets[ackIndex].resent && !packets[ackIndex].sacked) {
+			retransmitTimer.sample(System.currentTimeMillis() - packets[ackIndex].timeLastSent);
+		}
+		
 		for (int i=0; i<=offset; i++) {
 			int clearIndex = (front + i) % getWindowSize();
 			Packet packetClearing = packets[clearIndex].packet; 
 			assert (packetClearing != null);
-			assert (packetClearing.getPacketID() == (byte)(lastPidAcked+1));
+			assert (packetClearing.getPacketID() == ((lastPidAcked+1) & idMask));
 			
 			if (udpBuilding != null) {
 				udpBuilding.add(packetClearing);
@@ -175,11 +263,16 @@ public class SlidingWindow {
 
 			//if we are clearing it then we've acked it
 			lastPidAcked = packetClearing.getPacketID();
+			removeFromSendOrder(packets[clearIndex]);
 			packets[clearIndex].packet = null;
+			packets[clearIndex].sacked = false;
 		}
 		
 		Log.get().println(Log.LEVEL_SPAM, "SlidingWindow front moving from " + front + " to " + (ackIndex+1));
 		front = (ackIndex+1) % getWindowSize();
+		//everything up to the pid was in the run
+		count -= offset + 1;
+		waiting -= offset + 1;
 		return true;
 	}
 	
@@ -187,7 +280,7 @@ public class SlidingWindow {
 		return packets.length;
 	}
 
-	public Packet getPacket(byte pid) {
+	public Packet getPacket(int pid) {
 		int offset = getOffsetFromFront(pid);
 		int index = (front + offset) % packets.length;
 		
@@ -204,68 +297,120 @@ public class SlidingWindow {
 		return packets[lastIndex].packet != null;
 	}
 	
-	public Packet getOldestPacketIfLate(int millisecondsLate) {
-		long currentTime = System.currentTimeMillis();
+	/**
+	 * @return true if no packets are waiting in the window
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+	
+	/**
+	 * @return true if the oldest packet has gone unacked for millisecondsLate 
+	 *         since it was last sent
+	 */
+	public boolean isOldestPacketLate(int millisecondsLate) {
+		PacketAndTime pkt = packets[front];
+		return pkt.packet != null && !pkt.sacked && System.currentTimeMillis() - pkt.timeLastSent > millisecondsLate;
+	}
+	
+	/**
+	 * @return the oldest packet, or null if there is none or the other end 
+	 *         already has it
+	 */
+	public Packet getOldestPacket() {
 		PacketAndTime pkt = packets[front];
-		if (currentTime - pkt.timeAdded > millisecondsLate) {
-			pkt.timeLastSent = currentTime;
-			return pkt.packet;
+		if (pkt.sacked) {
+			return null;
+		}
+		return pkt.packet;
+	}
+	
+	/**
+	 * @return the oldest packet whether or not it is late, it counts as sent again
+	 */
+	public Packet resendOldestPacket() {
+		if (getOldestPacket() == null) {
+			return null;
 		}
-		return null;
+		return resend(packets[front]);
+	}
+	
+	/**
+	 * @return the oldest packet if it is late, it counts as sent again
+	 */
+	public Packet getOldestPacketIfLate(int millisecondsLate) {
+		if (!isOldestPacketLate(millisecondsLate)) {
+			return null;
+		}
+		return resend(packets[front]);
 	}
 
 
 	public Packet getLeastRecentlySentPacket() {
-		PacketAndTime mostLate = null;
-		for (int i=0; i<getWindowSize(); i++) {
-			int index = (front + i) % getWindowSize();
-			PacketAndTime pkt = packets[index];
-			if (mostLate == null) {
-				mostLate = pkt;
-			} else {
-				if (pkt.timeLastSent < mostLate.timeLastSent) {
-					mostLate = pkt;
-				}
-			}
-		}
-		if (mostLate != null) {
-			mostLate.timeLastSent = System.currentTimeMillis();
-			return mostLate.packet;
-		} else {
+		if (sendOrderHead == null) {
 			return null;
 		}
+		return resend(sendOrderHead);
 	}
 
 	public Packet getLeastRecentlySentPacketIfLate(int millisecondsLate) {
-		PacketAndTime mostLate = null;
-		for (int i=0; i<getWindowSize(); i++) {
-			int index = (front + i) % getWindowSize();
-			PacketAndTime pkt = packets[index];
-			if (mostLate == null) {
-				mostLate = pkt;
-			} else {
-				if (pkt.timeLastSent < mostLate.timeLastSent) {
-					mostLate = pkt;
-				}
-			}
+		if (sendOrderHead == null || System.currentTimeMillis() - sendOrderHead.timeLastSent <= millisecondsLate) {
+			return null;
 		}
-		if (mostLate != null) {
-			long currentTime = System.currentTimeMillis();
-			if (currentTime - mostLate.timeLastSent > millisecondsLate) {
-				mostLate.timeLastSent = System.currentTimeMillis();
-				return mostLate.packet;
-			}
+		return resend(sendOrderHead);
+	}
+	
+	private Packet resend(PacketAndTime pkt) {
+		pkt.timeLastSent = System.currentTimeMillis();
+		pkt.resent = true;
+		removeFromSendOrder(pkt);
+		appendToSendOrder(pkt);
+		return pkt.packet;
+	}
+	
+	private void appendToSendOrder(PacketAndTime pkt) {
+		pkt.prevSent = sendOrderTail;
+		pkt.nextSent = null;
+		if (sendOrderTail == null) {
+			sendOrderHead = pkt;
+		} else {
+			sendOrderTail.nextSent = pkt;
+		}
+		sendOrderTail = pkt;
+		pkt.inSendOrder = true;
+	}
+	
+	private void removeFromSendOrder(PacketAndTime pkt) {
+		if (!pkt.inSendOrder) {
+			return;
+		}
+		if (pkt.prevSent == null) {
+			sendOrderHead = pkt.nextSent;
+		} else {
+			pkt.prevSent.nextSent = pkt.nextSent;
+		}
+		if (pkt.nextSent == null) {
+			sendOrderTail = pkt.prevSent;
+		} else {
+			pkt.nextSent.prevSent = pkt.prevSent;
 		}
-		return null;
+		pkt.prevSent = pkt.nextSent = null;
+		pkt.inSendOrder = false;
 	}
 	
 	private class PacketAndTime {
 		/** the packet */
 		public Packet packet;
-		/** time added */
-		public long timeAdded;
 		/** last time sent out */
 		public long timeLastSent;
+		/** the other end selectively acked it */
+		public boolean sacked;
+		/** it was handed out more than once */
+		public boolean resent;
+		/** neighbours in the send order */
+		public PacketAndTime prevSent;
+		public PacketAndTime nextSent;
+		public boolean inSendOrder;
 	}
 	
 	public boolean seenEndOfWrite() {
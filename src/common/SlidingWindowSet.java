@@ -1,14 +1,33 @@
 package common;
 
 public class SlidingWindowSet {
+	/** 
+	 * repeats of the same ack, each selectively acking newer packets, before 
+	 * the packet after it is sent again without waiting for it to be late. 
+	 * Queries taking different paths can arrive out of order, so one or two
+	 * is expected.
+	 */
+	public static final int DUP_ACK_THRESHOLD = 3;
+	
 	private SlidingWindow msgsReceived;
 	private SlidingWindow msgsSent;
 	private long lastPacketReceivedTime;
 	private boolean oppositeIdle;
+	private RetransmitTimer retransmitTimer;
+	private int dupAcks;
+	/** the packet after the repeated ack should go out next */
+	private boolean fastRetransmit;
 	
-	public SlidingWindowSet(int window_size) {
-		msgsReceived = new SlidingWindow(window_size, true);
-		msgsSent = new SlidingWindow(window_size, false);
+	/**
+	 * @param idMask 0xff for 8 bit packet ids, 0xffff for 16 bit ones
+	 * @param lateMillis ms a packet may go unacked before it is sent again, 
+	 *        until the round trip has been measured
+	 */
+	public SlidingWindowSet(int window_size, int idMask, int lateMillis) {
+		msgsReceived = new SlidingWindow(window_size, idMask, true);
+		msgsSent = new SlidingWindow(window_size, idMask, false);
+		retransmitTimer = new RetransmitTimer(lateMillis);
+		msgsSent.setRetransmitTimer(retransmitTimer);
 		lastPacketReceivedTime = System.currentTimeMillis();
 	}
 	
@@ -31,32 +50,63 @@ public class SlidingWindowSet {
 			Log.get().println(Log.LEVEL_ULTRASPAM, msgsReceived);
 			
 			//immediately assemble any packets we can build from the sender
-			byte latestPid = msgsReceived.getLatestWaitingPid();
+			int latestPid = msgsReceived.getLatestWaitingPid();
 			msgsReceived.moveFrontOfWindowToPid(latestPid);
 		}
 		
 		oppositeIdle = packet.isNoOp();
 		
 		//discard the packets older than what we know they cant ask for again
-		byte sentCanDumpUpTo = packet.getLastPidSeen();
-		msgsSent.moveFrontOfWindowToPid(sentCanDumpUpTo);
+		int sentCanDumpUpTo = packet.getLastPidSeen();
+		if (msgsSent.moveFrontOfWindowToPid(sentCanDumpUpTo)) {
+			dupAcks = 0;
+			fastRetransmit = false;
+		}
+		
+		//the packets it has past the hole dont need sending again
+		if (packet.getSack() != null) {
+			int marked = msgsSent.markSacked(sentCanDumpUpTo, packet.getSack());
+			Log.get().println(Log.LEVEL_SPAM, "Selectively acked " + marked + " packets past " + sentCanDumpUpTo);
+			
+			//newer packets keep arriving but the one after the ack doesnt, it 
+			//is sent again once per hole, after that it waits to be late
+			if (marked > 0 && sentCanDumpUpTo == msgsSent.getLastPidAcked() && ++dupAcks == DUP_ACK_THRESHOLD) {
+				fastRetransmit = true;
+				Log.get().println(Log.LEVEL_SPAM, "Ack " + sentCanDumpUpTo + " repeated " + dupAcks + " times, sending the next packet again");
+			}
+		}
 
 	}
 
 	public boolean canSendData() {
 		return !msgsSent.isFull();
 	}
+	
+	/**
+	 * @return true if packets we sent are still waiting on an ack
+	 */
+	public boolean hasUnackedData() {
+		return !msgsSent.isEmpty();
+	}
 
-	public byte getLatestWaitingPid() {
+	public int getLatestWaitingPid() {
 		return msgsReceived.getLatestWaitingPid();
 	}
+	
+	/**
+	 * @return a selective ack bitmap of at most maxBytes to go with 
+	 *         getLatestWaitingPid, or null if it isnt needed
+	 */
+	public byte [] getSackBitmap(int maxBytes) {
+		return msgsReceived.getSackBitmap(maxBytes);
+	}
 
 	/**
 	 * DO NOT modify this packet, it can mess stuff up.
 	 * @param packetId pid of the packet to look for
 	 * @return The last packet sent with the pid, or null if it was already acked.
 	 */
-	public Packet getOldPacketSent(byte packetId) {
+	public Packet getOldPacketSent(int packetId) {
 		return msgsSent.getPacket(packetId);
 	}
 
@@ -64,18 +114,64 @@ public class SlidingWindowSet {
 	//	return msgsReceived.getOneAssembledPacket();
 	//}
 
-	public Packet getOldestPacketIfLate(int millisecondsLate) {
-		return msgsSent.getOldestPacketIfLate(millisecondsLate);
+	/**
+	 * @return the oldest packet sent if it has gone unacked for the 
+	 *         retransmission timeout, which then backs off
+	 */
+	public Packet getOldestPacketIfLate() {
+		Packet late = msgsSent.getOldestPacketIfLate(retransmitTimer.getTimeout());
+		if (late != null) {
+			retransmitTimer.backOff();
+			Log.get().println(Log.LEVEL_SPAM, "Packet " + late.getPacketID() + " is late, retransmission timeout now " + retransmitTimer.getTimeout() + "ms");
+		}
+		return late;
+	}
+	
+	/**
+	 * @return true if the other end is missing the oldest packet sent and 
+	 *         it should go out right away
+	 */
+	public boolean isFastRetransmitDue() {
+		return fastRetransmit && msgsSent.getOldestPacket() != null;
+	}
+	
+	/**
+	 * @param maxDataLength the most data bytes the packet may hold, or -1
+	 * @return the oldest packet sent if isFastRetransmitDue and it fits, 
+	 *         otherwise null
+	 */
+	public Packet getFastRetransmitPacket(int maxDataLength) {
+		if (!isFastRetransmitDue()) {
+			return null;
+		}
+		if (maxDataLength != -1 && msgsSent.getOldestPacket().getDataContent().length > maxDataLength) {
+			return null;
+		}
+		fastRetransmit = false;
+		return msgsSent.resendOldestPacket();
+	}
+	
+	/**
+	 * @return true if the oldest packet sent has gone unacked for the 
+	 *         retransmission timeout
+	 */
+	public boolean isOldestPacketLate() {
+		return msgsSent.isOldestPacketLate(retransmitTimer.getTimeout());
 	}
 
 	public Packet getLeastRecentlySentPacket() {
 		return msgsSent.getLeastRecentlySentPacket();
 	}
 	
-	public Packet getLeastRecentlySentPacketIfLate(int millisecondsLate) {
-		return msgsSent.getLeastRecentlySentPacketIfLate(millisecondsLate);
+	/**
+	 * @return the packet sent longest ago if that was more than the 
+	 *         retransmission timeout ago
+	 */
+	public Packet getLeastRecentlySentPacketIfLate() {
+		return msgsSent.getLeastRecentlySentPacketIfLate(retransmitTimer.getTimeout());
 	}
 
+
 	public void setRecievedWindowListener(SlidingWindowListener listener) {
 		msgsReceived.setListener(listener);
 	}
@@ -101,6 +197,7 @@ public class SlidingWindowSet {
 	public boolean isOppositeEndIdle() {
 		return oppositeIdle;
 	}
+
 }
 
 
@@ -13,6 +13,8 @@ public class SpecialClientPacket extends ClientPacket {
 	public static final byte SPECIAL_TYPE_CONNECTION_REQUEST = 0;
 	/** a connection close request */
 	public static final byte SPECIAL_TYPE_CONNECTION_CLOSED  = 1;
+	/** several connection establishment requests */
+	public static final byte SPECIAL_TYPE_CONNECTION_BATCH_REQUEST = 2;
 
 	public SpecialClientPacket(short clientID, byte packetID, byte flags,
 			byte lastPidSeen, byte checksum, byte[] dataContent) {
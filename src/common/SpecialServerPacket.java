@@ -12,6 +12,8 @@ public class SpecialServerPacket extends ServerPacket {
 	public static final byte SPECIAL_TYPE_CONNECTION_ACCEPTED = 0;
 	/** a connection close statement */
 	public static final byte SPECIAL_TYPE_CONNECTION_CLOSED = 1;
+	/** several connection requests were accepted */
+	public static final byte SPECIAL_TYPE_CONNECTION_BATCH_ACCEPTED = 2;
 	
 	public SpecialServerPacket(short clientID, byte packetID, byte flags,
 			byte lastPidSeen, byte checksum, byte[] dataContent) {
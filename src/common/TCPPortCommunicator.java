@@ -70,10 +70,10 @@ public class TCPPortCommunicator extends PortCommunicator {
 				
 				synchronized (this) {
 					transWaiting = newUnit;
+					//tell the listeners as soon as there is data to take, not after
+					firePacketReceived();
 					this.wait();
 				}
-				
-				firePacketReceived();
 			}
 		} catch (Exception e) {
 		}
@@ -94,6 +94,11 @@ public class TCPPortCommunicator extends PortCommunicator {
 		}
 	}
 	
+	@Override
+	public synchronized boolean hasIncoming() {
+		return transWaiting != null;
+	}
+
 	@Override
 	public synchronized TransmissionUnit receiveIncoming() {
 		TransmissionUnit tu = transWaiting;
@@ -237,6 +237,13 @@ public class UDPPortCommunicator extends PortCommunicator {
 		}
 	}
 
+	@Override
+	public boolean hasIncoming() {
+		synchronized (transmissionUnits) {
+			return !transmissionUnits.isEmpty();
+		}
+	}
+
 	public void dropAccumulatedUnits() {
 		synchronized (transmissionUnits) {
 			transmissionUnits.clear();	
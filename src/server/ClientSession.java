@@ -0,0 +1,24 @@
+package server;
+
+import common.ConnectionAcceptedServerPacket;
+
+/**
+ * What the server keeps about a connected client besides its ConnectionState.
+ */
+public class ClientSession {
+	/** answers recently sent, for replaying to retried queries */
+	public ResponseCache responseCache;
+	/** the client unpacks several packets from one answer */
+	public boolean multiplePackets;
+	/** room the client asked us to leave for resolvers that grow answers */
+	public int truncationAllowance;
+	/** sent again if a resolver retries the connection request */
+	public ConnectionAcceptedServerPacket accept;
+
+	public ClientSession(boolean multiplePackets, int truncationAllowance, ConnectionAcceptedServerPacket accept) {
+		this.responseCache = new ResponseCache();
+		this.multiplePackets = multiplePackets;
+		this.truncationAllowance = truncationAllowance;
+		this.accept = accept;
+	}
+}
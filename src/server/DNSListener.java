@@ -0,0 +1,80 @@
+package server;
+
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bound dns socket and its counters. When the server is sharded several of
+ * these share the same address and port and the kernel spreads the queries
+ * over them.
+ */
+public class DNSListener {
+	public static final long INODE_UNKNOWN = -1;
+
+	private DatagramChannel channel;
+	private String name;
+	/** the socket's inode, used to find it in the kernel udp tables */
+	private long inode;
+	/** datagrams we read off the socket */
+	private AtomicLong received;
+	/** datagrams we read but had to drop because the workers were backed up */
+	private AtomicLong dropped;
+	/** kernel drop count at the last report */
+	private long lastKernelDrops;
+
+	public DNSListener(DatagramChannel channel, String name) {
+		this.channel = channel;
+		this.name = name;
+		this.inode = INODE_UNKNOWN;
+		this.received = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.lastKernelDrops = 0;
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	public long getInode() {
+		return inode;
+	}
+
+	public void setInode(long inode) {
+		this.inode = inode;
+	}
+
+	public void countReceived() {
+		received.incrementAndGet();
+	}
+
+	public void countDropped() {
+		dropped.incrementAndGet();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @param kernelDrops the current kernel drop count for this socket
+	 * @return how many drops happened since the last call
+	 */
+	public long updateKernelDrops(long kernelDrops) {
+		long newDrops = kernelDrops - lastKernelDrops;
+		lastKernelDrops = kernelDrops;
+		return newDrops;
+	}
+
+	public long getKernelDrops() {
+		return lastKernelDrops;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,56 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.xbill.DNS.Message;
+
+import common.ClientPacket;
+import common.DNSWire;
+
+/**
+ * A single dns query on its way through the receive, reply and send stages.
+ */
+public class DNSRequest {
+	/** The udp socket the query came in on, the reply goes back out on it */
+	public DNSListener listener;
+	/** The tcp connection the query came in on instead, null for udp */
+	public DNSTCPConnection tcp;
+	/** Who asked */
+	public SocketAddress from;
+	/** The raw query in a pooled buffer, readable from 0 to the datagram's length */
+	public ByteBuffer data;
+	/** The parsed query, null unless something needed dnsjava, see getQuery() */
+	public Message query;
+	/** The tunnel packet in the question, null if it could not be decoded up front */
+	public ClientPacket clientPkt;
+	/** The question type, set along with clientPkt when the fast path decoded it */
+	public int qtype;
+	/** The wire response in a pooled buffer, null means nothing should be sent */
+	public ByteBuffer response;
+	/** The query was held and is going through the pipeline a second time */
+	public boolean resumed;
+
+	public DNSRequest(DNSListener listener, SocketAddress from, ByteBuffer data) {
+		this.listener = listener;
+		this.from = from;
+		this.data = data;
+	}
+
+	public DNSRequest(DNSTCPConnection tcp, ByteBuffer data) {
+		this.tcp = tcp;
+		this.from = tcp.getSocket().getRemoteSocketAddress();
+		this.data = data;
+	}
+
+	/**
+	 * @return the query parsed by dnsjava, parsing it on first use
+	 */
+	public Message getQuery() throws IOException {
+		if (query == null) {
+			query = new Message(DNSWire.toArray(data));
+		}
+		return query;
+	}
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import common.BufferPool;
+import common.Log;
+
+/**
+ * Receives queries from any number of non-blocking dns sockets on a single
+ * thread and hands them to the server's receive stage.
+ */
+public class DNSSelectorLoop extends Thread {
+	/** max datagrams read from one socket before giving the others a turn */
+	public static final int MAX_READS_PER_WAKEUP = 64;
+
+	private Server server;
+	private BufferPool buffers;
+	private Selector selector;
+	/** listeners waiting to be registered from inside the loop */
+	private LinkedList<DNSListener> pending;
+
+	/**
+	 * @param buffers queries are received straight into buffers from this pool
+	 */
+	public DNSSelectorLoop(Server server, int index, BufferPool buffers) throws IOException {
+		super("DNS Selector " + index);
+		this.server = server;
+		this.buffers = buffers;
+		this.selector = Selector.open();
+		this.pending = new LinkedList<DNSListener>();
+	}
+
+	/**
+	 * Adds a socket to this loop, safe to call from any thread.
+	 */
+	public void addListener(DNSListener listener) throws IOException {
+		listener.getChannel().configureBlocking(false);
+		synchronized (pending) {
+			pending.add(listener);
+		}
+		//registering blocks while the selector is selecting, so let the loop do it
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				registerPending();
+				selector.select();
+			} catch (IOException e) {
+				Log.get().exception(Log.LEVEL_ERROR, e);
+				return;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				DNSListener listener = (DNSListener) key.attachment();
+				if (!key.isValid()) {
+					continue;
+				}
+
+				try {
+					readQueries(listener);
+				} catch (IOException e) {
+					Log.get().exception(Log.LEVEL_INFO, e);
+					key.cancel();
+				}
+			}
+		}
+	}
+
+	private void readQueries(DNSListener listener) throws IOException {
+		DatagramChannel chan = listener.getChannel();
+
+		ByteBuffer in = buffers.acquire();
+		try {
+			for (int i=0; i<MAX_READS_PER_WAKEUP; i++) {
+				SocketAddress from = chan.receive(in);
+				//nothing left on this socket
+				if (from == null) {
+					return;
+				}
+
+				in.flip();
+				listener.countReceived();
+				//the buffer now belongs to the request, the pipeline releases it
+				server.receivedDNS(new DNSRequest(listener, from, in));
+				in = buffers.acquire();
+			}
+		} finally {
+			buffers.release(in);
+		}
+	}
+
+	private void registerPending() throws ClosedChannelException {
+		synchronized (pending) {
+			while (!pending.isEmpty()) {
+				DNSListener listener = pending.removeFirst();
+				listener.getChannel().register(selector, SelectionKey.OP_READ, listener);
+				Log.get().println(Log.LEVEL_SPAM, "Selecting on dns socket " + listener);
+			}
+		}
+	}
+}
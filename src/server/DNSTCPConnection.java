@@ -0,0 +1,156 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import common.BufferPool;
+import common.DNSWire;
+import common.Log;
+
+/**
+ * One dns over tcp connection. Every message is preceded by its length in
+ * two bytes. Queries may be pipelined, each one goes through the same reply
+ * pipeline as the udp ones and the answers are written back in whatever
+ * order they are finished, matched up by the dns id.
+ */
+public class DNSTCPConnection extends Thread {
+	/** close connections with no queries for this long, in ms */
+	public static final int IDLE_TIMEOUT = 30000;
+	/** answers waiting to be written, past this they are dropped like lost udp answers */
+	public static final int MAX_PENDING_RESPONSES = 64;
+
+	private Server server;
+	private BufferPool buffers;
+	private Socket sock;
+	private DNSTCPListener acceptor;
+	private DataInputStream in;
+	private BlockingQueue<ByteBuffer> responses;
+	private WriterThread writer;
+
+	public DNSTCPConnection(Server server, BufferPool buffers, Socket sock, DNSTCPListener acceptor) throws IOException {
+		super("DNS TCP " + sock.getRemoteSocketAddress());
+		this.server = server;
+		this.buffers = buffers;
+		this.sock = sock;
+		this.acceptor = acceptor;
+		this.responses = new LinkedBlockingQueue<ByteBuffer>(MAX_PENDING_RESPONSES);
+
+		sock.setSoTimeout(IDLE_TIMEOUT);
+		sock.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		this.writer = new WriterThread(new DataOutputStream(new BufferedOutputStream(sock.getOutputStream())));
+	}
+
+	public Socket getSocket() {
+		return sock;
+	}
+
+	@Override
+	public void run() {
+		writer.start();
+		byte [] frame = new byte [buffers.getBufferSize()];
+		try {
+			while (true) {
+				int length = in.readUnsignedShort();
+				if (length < DNSWire.HEADER_SIZE) {
+					Log.get().println(Log.LEVEL_INFO, "Short dns message over tcp, closing " + sock.getRemoteSocketAddress());
+					break;
+				}
+
+				ByteBuffer query;
+				if (length <= buffers.getBufferSize()) {
+					query = buffers.acquire();
+				} else {
+					query = ByteBuffer.allocate(length);
+					frame = new byte [length];
+				}
+				in.readFully(frame, 0, length);
+				query.put(frame, 0, length);
+				query.flip();
+				server.receivedDNS(new DNSRequest(this, query));
+			}
+		} catch (SocketTimeoutException e) {
+			Log.get().println(Log.LEVEL_SPAM, "Idle dns tcp connection closed: " + sock.getRemoteSocketAddress());
+		} catch (EOFException e) {
+			//the resolver hung up
+		} catch (IOException e) {
+			Log.get().exception(Log.LEVEL_INFO, e);
+		}
+		close();
+	}
+
+	/**
+	 * Queues an answer to be written, called by the pipeline's workers.
+	 * @return false if the connection is backed up or gone and the answer was dropped
+	 */
+	public boolean send(ByteBuffer response) {
+		if (!writer.isAlive() || !responses.offer(response)) {
+			buffers.release(response);
+			return false;
+		}
+		return true;
+	}
+
+	private void close() {
+		try {
+			sock.close();
+		} catch (IOException e) {
+		}
+		writer.interrupt();
+		acceptor.connectionClosed();
+	}
+
+	private class WriterThread extends Thread {
+		private DataOutputStream out;
+
+		public WriterThread(DataOutputStream out) {
+			super("DNS TCP Writer " + sock.getRemoteSocketAddress());
+			this.out = out;
+		}
+
+		@Override
+		public void run() {
+			byte [] frame = new byte [buffers.getBufferSize()];
+			try {
+				while (true) {
+					ByteBuffer response = responses.take();
+					int length = response.remaining();
+					if (length > frame.length) {
+						frame = new byte [length];
+					}
+					response.get(frame, 0, length);
+					buffers.release(response);
+
+					out.writeShort(length);
+					out.write(frame, 0, length);
+					//keep writing while answers are waiting, flush when we run dry
+					if (responses.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (InterruptedException e) {
+				//the connection closed
+			} catch (IOException e) {
+				Log.get().exception(Log.LEVEL_INFO, e);
+				try {
+					sock.close();
+				} catch (IOException e2) {
+				}
+			}
+
+			ByteBuffer response;
+			while ((response = responses.poll()) != null) {
+				buffers.release(response);
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.BufferPool;
+import common.Log;
+
+/**
+ * Accepts dns over tcp connections, which resolvers open when a udp answer
+ * comes back truncated or when they keep a connection to us open.
+ */
+public class DNSTCPListener extends Thread {
+	/** tcp connections held open at once, past this new ones are refused */
+	public static final int MAX_CONNECTIONS = 256;
+	public static final int BACKLOG = 50;
+
+	private Server server;
+	private BufferPool buffers;
+	private ServerSocket serverSocket;
+	private AtomicInteger numConnections;
+
+	public DNSTCPListener(Server server, BufferPool buffers, InetAddress addr, int port) throws IOException {
+		super("DNS TCP Listener " + addr + ":" + port);
+		this.server = server;
+		this.buffers = buffers;
+		this.numConnections = new AtomicInteger();
+
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(addr, port), BACKLOG);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Socket sock;
+			try {
+				sock = serverSocket.accept();
+			} catch (IOException e) {
+				Log.get().exception(Log.LEVEL_ERROR, e);
+				return;
+			}
+
+			if (numConnections.incrementAndGet() > MAX_CONNECTIONS) {
+				numConnections.decrementAndGet();
+				Log.get().println(Log.LEVEL_WARN, "Too many dns tcp connections, refusing " + sock.getRemoteSocketAddress());
+				try {
+					sock.close();
+				} catch (IOException e) {
+				}
+				continue;
+			}
+
+			try {
+				new DNSTCPConnection(server, buffers, sock, this).start();
+			} catch (IOException e) {
+				Log.get().exception(Log.LEVEL_INFO, e);
+				connectionClosed();
+				try {
+					sock.close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+
+	void connectionClosed() {
+		numConnections.decrementAndGet();
+	}
+}
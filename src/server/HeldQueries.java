@@ -0,0 +1,151 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import common.BufferPool;
+import common.Log;
+
+/**
+ * Long polling. A client with nothing to send still asks every interval so
+ * the server has a way to answer with data. Instead of answering those polls
+ * with a no-op straight away they are held here until the forward side of
+ * the client has data, or until the hold time runs out (kept well below
+ * the resolvers' timeouts). Either way the query goes back through the
+ * reply pipeline to be answered.
+ */
+public class HeldQueries extends Thread {
+	/** polls held for any one client, past this they are answered right away */
+	public static final int MAX_HELD_PER_CLIENT = 8;
+	/** hold() results */
+	public static final int NOT_HELD = 0;
+	public static final int HELD = 1;
+
+	private ReplyPipeline pipeline;
+	private BufferPool buffers;
+	private int holdMillis;
+	/** in the order they expire in */
+	private LinkedList<HeldQuery> held;
+
+	/**
+	 * @param holdMillis how long to hold a poll, 0 to answer them right away
+	 */
+	public HeldQueries(ReplyPipeline pipeline, BufferPool buffers, int holdMillis) {
+		super("Long Poll Timer");
+		this.pipeline = pipeline;
+		this.buffers = buffers;
+		this.holdMillis = holdMillis;
+		this.held = new LinkedList<HeldQuery>();
+	}
+
+	/**
+	 * Called by a worker about to answer a poll with a no-op.
+	 * @param question the query's question from DNSWire.copyQuestion, may be null
+	 * @return NOT_HELD or HELD. Once HELD the query can be resumed at any 
+	 *         time, the caller must leave it and its buffer alone. A retry of
+	 *         a query already held is HELD in its place.
+	 */
+	public int hold(DNSRequest request, short clientId, ByteBuffer question) {
+		return hold(request, clientId, question, holdMillis);
+	}
+
+	/**
+	 * @param holdFor ms to hold the query at most
+	 */
+	public synchronized int hold(DNSRequest request, short clientId, ByteBuffer question, int holdFor) {
+		if (holdFor <= 0 || request.resumed) {
+			return NOT_HELD;
+		}
+
+		int numHeld = 0;
+		for (HeldQuery query : held) {
+			if (query.clientId != clientId) {
+				continue;
+			}
+			//the resolver gave up waiting and asked again, likely with a new id 
+			//and port. It has stopped listening for the old query, so the answer
+			//goes to the retry
+			if (question != null && question.equals(query.question)) {
+				buffers.release(query.request.data);
+				query.request.data = null;
+				query.request = request;
+				return HELD;
+			}
+			numHeld++;
+		}
+		if (numHeld >= MAX_HELD_PER_CLIENT) {
+			return NOT_HELD;
+		}
+
+		HeldQuery query = new HeldQuery(request, clientId, question, System.currentTimeMillis() + holdFor);
+		int index = held.size();
+		while (index > 0 && held.get(index - 1).deadline > query.deadline) {
+			index--;
+		}
+		held.add(index, query);
+		notify();
+		return HELD;
+	}
+
+	/**
+	 * Answers every poll held for the client, called when data shows up for it.
+	 */
+	public synchronized void release(short clientId) {
+		Iterator<HeldQuery> iter = held.iterator();
+		while (iter.hasNext()) {
+			HeldQuery query = iter.next();
+			if (query.clientId == clientId) {
+				iter.remove();
+				resume(query.request);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				try {
+					if (held.isEmpty()) {
+						wait();
+					} else {
+						long waitMillis = held.getFirst().deadline - System.currentTimeMillis();
+						if (waitMillis > 0) {
+							wait(waitMillis);
+						}
+					}
+				} catch (InterruptedException e) {
+				}
+
+				long now = System.currentTimeMillis();
+				while (!held.isEmpty() && held.getFirst().deadline <= now) {
+					resume(held.removeFirst().request);
+				}
+			}
+		}
+	}
+
+	private void resume(DNSRequest request) {
+		request.resumed = true;
+		if (!pipeline.submit(request)) {
+			Log.get().println(Log.LEVEL_SPAM, "Dropped a held query, the workers are backed up.");
+			buffers.release(request.data);
+			request.data = null;
+		}
+	}
+
+	private static class HeldQuery {
+		DNSRequest request;
+		short clientId;
+		ByteBuffer question;
+		long deadline;
+
+		HeldQuery(DNSRequest request, short clientId, ByteBuffer question, long deadline) {
+			this.request = request;
+			this.clientId = clientId;
+			this.question = question;
+			this.deadline = deadline;
+		}
+	}
+}
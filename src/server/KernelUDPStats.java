@@ -0,0 +1,67 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Reads per socket udp counters out of the linux /proc/net/udp tables. On
+ * other systems the tables don't exist and every lookup comes back empty.
+ */
+public class KernelUDPStats {
+	private static final String [] TABLES = {"/proc/net/udp", "/proc/net/udp6"};
+
+	//column indexes in the /proc/net/udp table
+	private static final int COL_LOCAL_ADDRESS = 1;
+	private static final int COL_INODE         = 9;
+	private static final int COL_DROPS         = 12;
+
+	/**
+	 * @param port the local port to look for
+	 * @return socket inode to the number of datagrams the kernel dropped on
+	 *         it, for every udp socket bound to the port
+	 */
+	public static HashMap<Long, Long> readDropsByInode(int port) {
+		HashMap<Long, Long> drops = new HashMap<Long, Long>();
+		for (String table : TABLES) {
+			readTable(table, port, drops);
+		}
+		return drops;
+	}
+
+	private static void readTable(String table, int port, HashMap<Long, Long> drops) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(table));
+			//first line is the column headers
+			String line = in.readLine();
+			while ((line = in.readLine()) != null) {
+				String [] cols = line.trim().split("\\s+");
+				if (cols.length <= COL_DROPS) {
+					continue;
+				}
+
+				//local address looks like 0100007F:0035, the port is hex
+				String local = cols[COL_LOCAL_ADDRESS];
+				int colon = local.lastIndexOf(':');
+				if (colon == -1 || Integer.parseInt(local.substring(colon + 1), 16) != port) {
+					continue;
+				}
+
+				drops.put(Long.parseLong(cols[COL_INODE]), Long.parseLong(cols[COL_DROPS]));
+			}
+		} catch (IOException e) {
+			//not linux, or /proc isnt mounted
+		} catch (NumberFormatException e) {
+			//some kernel we dont understand
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import common.BufferPool;
+import common.Log;
+
+/**
+ * Runs the reply and send stages of the server. The receivers parse queries
+ * and hand them to {@link #submit(DNSRequest)}, a pool of workers runs
+ * generateReply and a single sender puts the udp answers back on the wire.
+ * Answers to tcp queries go to their connection's own writer instead.
+ *
+ * Queries are striped over the workers by client id, so every query for a
+ * given client is applied to its ConnectionState in the order it arrived.
+ */
+public class ReplyPipeline {
+	/** max queries waiting on any one worker or the sender before we start dropping */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	private Server server;
+	private BufferPool buffers;
+	private WorkerThread [] workers;
+	private SenderThread sender;
+
+	/**
+	 * @param buffers pool the request and response buffers come from, they
+	 *                are released back to it once the stages are done
+	 */
+	public ReplyPipeline(Server server, int numWorkers, BufferPool buffers) {
+		this.server = server;
+		this.buffers = buffers;
+		this.workers = new WorkerThread[Math.max(1, numWorkers)];
+		for (int i=0; i<workers.length; i++) {
+			workers[i] = new WorkerThread(i);
+			workers[i].start();
+		}
+		this.sender = new SenderThread();
+		this.sender.start();
+	}
+
+	/**
+	 * Queues a parsed query for a reply.
+	 * @return false if the worker is backed up and the query was dropped
+	 */
+	public boolean submit(DNSRequest request) {
+		int stripe = 0;
+		if (request.clientPkt != null) {
+			stripe = (request.clientPkt.getClientID() & 0xffff) % workers.length;
+		}
+
+		if (!workers[stripe].queue.offer(request)) {
+			Log.get().println(Log.LEVEL_SPAM, "Worker " + stripe + " backed up, query dropped.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a finished response for sending.
+	 * @return false if the sender is backed up and the response was dropped
+	 */
+	public boolean send(DNSRequest request) {
+		if (request.tcp != null) {
+			if (!request.tcp.send(request.response)) {
+				Log.get().println(Log.LEVEL_SPAM, "TCP connection backed up, response dropped.");
+				return false;
+			}
+			return true;
+		}
+		if (!sender.queue.offer(request)) {
+			Log.get().println(Log.LEVEL_SPAM, "Sender backed up, response dropped.");
+			buffers.release(request.response);
+			return false;
+		}
+		return true;
+	}
+
+	private class WorkerThread extends Thread {
+		private BlockingQueue<DNSRequest> queue = new LinkedBlockingQueue<DNSRequest>(QUEUE_CAPACITY);
+
+		public WorkerThread(int index) {
+			super("DNS Reply Worker " + index);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				DNSRequest request;
+				try {
+					request = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				ByteBuffer response;
+				try {
+					response = server.generateReply(request, request.tcp == null ? null : request.tcp.getSocket());
+				} catch (Exception e) {
+					Log.get().exception(Log.LEVEL_ERROR, e);
+					response = server.formerrMessage(request.data);
+				}
+				//it will come back through here once it is answerable, maybe already has
+				if (response == Server.HELD_REPLY) {
+					continue;
+				}
+				request.response = response;
+				//the reply holds its own copy of the question
+				buffers.release(request.data);
+				request.data = null;
+
+				//no response? dont send anything
+				if (request.response != null) {
+					send(request);
+				}
+			}
+		}
+	}
+
+	private class SenderThread extends Thread {
+		private BlockingQueue<DNSRequest> queue = new LinkedBlockingQueue<DNSRequest>(QUEUE_CAPACITY);
+
+		public SenderThread() {
+			super("DNS Sender");
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				DNSRequest request;
+				try {
+					request = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				try {
+					//the sockets are non-blocking, a full send buffer loses the response like the network would
+					if (request.listener.getChannel().send(request.response, request.from) == 0) {
+						Log.get().println(Log.LEVEL_SPAM, "Send buffer full, response dropped.");
+					}
+				} catch (IOException e) {
+					Log.get().exception(Log.LEVEL_INFO, e);
+				}
+				buffers.release(request.response);
+				request.response = null;
+			}
+		}
+	}
+}
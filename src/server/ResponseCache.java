@@ -0,0 +1,78 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last few answers sent to one client, keyed by the question (name,
+ * type and class, exactly as asked). Resolvers retry a query that is slow
+ * to answer, and replaying the answer we already built is cheaper than
+ * feeding the retry through the ConnectionState, which would use up a new
+ * downstream packet.
+ */
+public class ResponseCache {
+	public static final int MAX_ENTRIES = 16;
+	/** 
+	 * how long an answer is replayed for, in ms. Long enough for resolvers'
+	 * retries, which is longer than the client's retransmission timeout can
+	 * be (see RetransmitTimer). A packet the client sends again with nothing
+	 * new to ack asks the same question, and it gets the old answer back on
+	 * purpose. We already have that packet, the answer carries the ack the 
+	 * client is missing and what it sent down may have been lost with it.
+	 * Polls never repeat a question.
+	 */
+	public static final int WINDOW = 2000;
+
+	private LinkedHashMap<ByteBuffer, CachedResponse> entries;
+	private long hits;
+	private long misses;
+
+	public ResponseCache() {
+		entries = new LinkedHashMap<ByteBuffer, CachedResponse>(MAX_ENTRIES, .75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedResponse> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/**
+	 * @param question from DNSWire.copyQuestion
+	 * @return the wire response last sent for this question, or null. The id
+	 *         is the old query's, the caller fixes it up.
+	 */
+	public synchronized byte [] get(ByteBuffer question, long now) {
+		CachedResponse cached = entries.get(question);
+		if (cached == null || now - cached.time > WINDOW) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cached.response;
+	}
+
+	public synchronized void put(ByteBuffer question, byte [] response, long now) {
+		entries.put(question, new CachedResponse(response, now));
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static class CachedResponse {
+		byte [] response;
+		long time;
+
+		CachedResponse(byte [] response, long time) {
+			this.response = response;
+			this.time = time;
+		}
+	}
+}
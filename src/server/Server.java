@@ -1,20 +1,25 @@
 package server;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Flags;
@@ -27,17 +32,24 @@ import org.xbill.DNS.Record;
 import org.xbill.DNS.Section;
 import org.xbill.DNS.Type;
 
+import common.BufferPool;
 import common.ClientPacket;
 import common.Common;
 import common.ConnectionAcceptedServerPacket;
+import common.ConnectionBatchAcceptedServerPacket;
+import common.ConnectionBatchRequestClientPacket;
 import common.ConnectionClosedClientPacket;
 import common.ConnectionClosedServerPacket;
 import common.ConnectionRequestClientPacket;
 import common.ConnectionState;
+import common.DNSSizes;
+import common.DNSWire;
 import common.LZMAPacketConverter;
 import common.Log;
+import common.MuxPortCommunicator;
 import common.Packet;
 import common.PortCommunicator;
+import common.PortCommunicatorListener;
 import common.ServerPacket;
 import common.SpecialClientPacket;
 import common.TCPPortCommunicator;
@@ -46,11 +58,47 @@ import common.UDPPortCommunicator;
 public class Server {
 	public static final String SERVER_NAME = "tcp-over-dns-server";
 	public static final String DEFAULT_ADDR = "0.0.0.0";
+	public static final int DEFAULT_DNS_SHARDS = 1;
+	public static final int DEFAULT_DNS_RECEIVE_BUFFER = 1 << 20;
+	/** ms to hold an idle poll, resolvers typically give up after 2+ seconds */
+	public static final int DEFAULT_LONG_POLL = 1000;
+	/** largest window a client may ask for, each packet in it holds on to memory */
+	public static final int DEFAULT_MAX_WINDOW = 4096;
+	/** seconds between logging the dns socket counters */
+	public static final int STATS_INTERVAL = 60;
+	/** most packets packed into one TXT answer, the client reads up to 64 */
+	public static final int MAX_PACKETS_PER_ANSWER = 16;
+	/** pointer to the question, type, class, ttl and rdata length of an answer */
+	private static final int ANSWER_OVERHEAD = 2 + DNSWire.RR_FIXED_SIZE;
+	/** generateReply's answer for a query handed to HeldQueries, which owns it from then on */
+	public static final ByteBuffer HELD_REPLY = ByteBuffer.allocate(0);
+	/** ms a connection request carrying early data waits for the forward side to answer it */
+	public static final int EARLY_DATA_HOLD = 250;
 
 	private HashMap<Short, ConnectionState> clients = new HashMap<Short, ConnectionState>();
+	/** the rest of what we know about each client, guarded by clients */
+	private HashMap<Short, ClientSession> sessions = new HashMap<Short, ClientSession>();
+	/** the client id given to each connection request's challenge, guarded by clients */
+	private HashMap<Integer, Short> challenges = new HashMap<Integer, Short>();
+	private AtomicLong cacheHits = new AtomicLong();
+	private AtomicLong cacheMisses = new AtomicLong();
 	private InetSocketAddress forwardAddress;
 	private ServerOptions serverOpts;
 	private Random rand;
+	private ReplyPipeline pipeline;
+	private HeldQueries heldQueries;
+	private BufferPool buffers;
+	private ArrayList<DNSListener> listeners = new ArrayList<DNSListener>();
+	private DNSSelectorLoop [] selectorLoops;
+	/** serverOpts.domain in wire format, for the fast path */
+	private byte [] domainWire;
+	/** decodeWireQuestion's scratch space for the query name, one per receiving thread */
+	private static final ThreadLocal<byte []> querySymbols = new ThreadLocal<byte []>() {
+		@Override
+		protected byte [] initialValue() {
+			return new byte [DNSSizes.MAX_DOMAIN_LEN];
+		}
+	};
 	
 	public static void main(String[] args) {
 		try {
@@ -85,23 +133,34 @@ public class Server {
 		logOptions();
 		
 		rand = new Random();
+		domainWire = DNSWire.toWireName(serverOpts.domain);
 		
 		forwardAddress = new InetSocketAddress(serverOpts.forwardAddr, serverOpts.forwardPort);
 		
+		buffers = new BufferPool(Math.max(DNSSizes.MAX_PACKET_SIZE, serverOpts.ednsSize), BufferPool.DEFAULT_MAX_POOLED, serverOpts.directBuffers);
+		pipeline = new ReplyPipeline(this, serverOpts.workerThreads, buffers);
+		heldQueries = new HeldQueries(pipeline, buffers, serverOpts.longPoll);
+		heldQueries.start();
+		
+		selectorLoops = new DNSSelectorLoop[serverOpts.dnsSelectors];
+		for (int i=0; i<selectorLoops.length; i++) {
+			selectorLoops[i] = new DNSSelectorLoop(this, i, buffers);
+			selectorLoops[i].start();
+		}
+		
 		//are we inherited a dgram channel?
 		if (serverOpts.inheritedChannel != null) {
 			// Serve DNS over it
-			new Thread("DNS Serve Inherited Channel") {
-				public void run() {
-					serveDNS(serverOpts.inheritedChannel);
-				}
-			}.start();
+			addListener(new DNSListener(serverOpts.inheritedChannel, "Inherited Channel"));
 		} else {
 			//only attempt to open the ports if we arent using an 
 			//inherited channel
 			for (InetAddress addr : serverOpts.listenAddrs) {
 				for (int port : serverOpts.listenPorts) {
 					addUDP(addr, port);
+					if (serverOpts.dnsTCP) {
+						addTCP(addr, port);
+					}
 				}
 			}				
 		}
@@ -121,6 +180,19 @@ public class Server {
 		}
 		Log.get().println(Log.LEVEL_INFO, "Forwarding to: " + serverOpts.forwardAddr + ":" + serverOpts.forwardPort);
 		Log.get().println(Log.LEVEL_INFO, "MTU: " + serverOpts.mtu + " bytes");
+		Log.get().println(Log.LEVEL_INFO, "Reply worker threads: " + serverOpts.workerThreads);
+		Log.get().println(Log.LEVEL_INFO, "DNS sockets per address: " + serverOpts.dnsShards);
+		Log.get().println(Log.LEVEL_INFO, "DNS selector threads: " + serverOpts.dnsSelectors);
+		Log.get().println(Log.LEVEL_INFO, "DNS socket receive buffer: " + serverOpts.dnsReceiveBuffer + " bytes");
+		Log.get().println(Log.LEVEL_INFO, "Direct buffers: " + serverOpts.directBuffers);
+		Log.get().println(Log.LEVEL_INFO, "Max EDNS0 response size: " + serverOpts.ednsSize + " bytes");
+		Log.get().println(Log.LEVEL_INFO, "DNS over TCP: " + (serverOpts.dnsTCP ? "enabled" : "disabled"));
+		if (serverOpts.longPoll > 0) {
+			Log.get().println(Log.LEVEL_INFO, "Idle polls held for up to: " + serverOpts.longPoll + " ms");
+		} else {
+			Log.get().println(Log.LEVEL_INFO, "Long polling disabled");
+		}
+		Log.get().println(Log.LEVEL_INFO, "Max window: " + serverOpts.maxWindow + " packets");
 		Log.get().println(Log.LEVEL_INFO, "Log level: " + serverOpts.logLevel);
 		if (serverOpts.idleTimeout > 0) {
 			Log.get().println(Log.LEVEL_INFO, "Server idle timeout: "+ serverOpts.idleTimeout + " seconds");
@@ -131,9 +203,11 @@ public class Server {
 	
 	/*
 	 * Note: a null return value means that the caller doesn't need to do
-	 * anything.
+	 * anything, HELD_REPLY means the query was held for long polling. 
+	 * Otherwise the reply is in a pooled buffer, ready for sending.
+	 * If request.clientPkt is null the question is decoded here.
 	 */
-	byte[] generateReply(Message query, Socket s)
+	ByteBuffer generateReply(DNSRequest request, Socket s)
 			throws IOException {
 		
 		//pretend 30% packet loss
@@ -141,47 +215,79 @@ public class Server {
 		//	return null;
 		//}
 		
-		Header header = query.getHeader();
-		
-		//if they are sending us a query response then the response packets 
-		//are going in the wrong direction
-		if (header.getFlag(Flags.QR))
-			return null;
-		//if there was already an error, just report it
-		if (header.getRcode() != Rcode.NOERROR)
-			return errorMessage(query, Rcode.FORMERR);
-		//we can only handle queries at this point
-		if (header.getOpcode() != Opcode.QUERY)
-			return errorMessage(query, Rcode.NOTIMP);
-
-		//every response has the question in it
-		Record queryRecord = query.getQuestion();
-
-		int type = queryRecord.getType();
-		//general case
-		if (!Type.isRR(type) && type != Type.ANY) {
-			return errorMessage(query, Rcode.NOTIMP);
-		}
-
-		//right now we only support CNAME and TXT
-		if (type != Type.TXT && type != Type.CNAME) {
-			return errorMessage(query, Rcode.NOTIMP);
+		ClientPacket clientPkt = request.clientPkt;
+		int type;
+		//the fast path already checked the header and question
+		if (clientPkt != null && request.query == null) {
+			type = request.qtype;
+		} else {
+			Message query = request.getQuery();
+			Header header = query.getHeader();
+			
+			//if they are sending us a query response then the response packets 
+			//are going in the wrong direction
+			if (header.getFlag(Flags.QR))
+				return null;
+			//if there was already an error, just report it
+			if (header.getRcode() != Rcode.NOERROR)
+				return errorMessage(query, Rcode.FORMERR);
+			//we can only handle queries at this point
+			if (header.getOpcode() != Opcode.QUERY)
+				return errorMessage(query, Rcode.NOTIMP);
+	
+			//every response has the question in it
+			Record queryRecord = query.getQuestion();
+	
+			type = queryRecord.getType();
+			//general case
+			if (!Type.isRR(type) && type != Type.ANY) {
+				return errorMessage(query, Rcode.NOTIMP);
+			}
+	
+			//right now we only support CNAME and TXT
+			if (type != Type.TXT && type != Type.CNAME) {
+				return errorMessage(query, Rcode.NOTIMP);
+			}
+			
+			if (clientPkt == null) {
+				try {
+					clientPkt = ClientPacket.decodeClientPacket(queryRecord.getName(), serverOpts.domain);
+				} catch (Exception e) {
+					Log.get().exception(Log.LEVEL_ERROR, e);
+					return errorMessage(query, Rcode.FORMERR);
+				}
+			}
 		}
 		
 		boolean isTXT = type == Type.TXT;
+		int payloadSize = queryPayloadSize(request);
+		int maxLength = determineMaxResponseLength(s, payloadSize);
 		
-		Message response = new Message(query.getHeader().getID());
-		response.getHeader().setFlag(Flags.QR);
-		response.getHeader().setFlag(Flags.RD);
-		response.getHeader().setFlag(Flags.RA);
-		response.getHeader().setFlag(Flags.AA);
-		response.addRecord(queryRecord, Section.QUESTION);
+		//a resolver retrying a query gets the answer it is waiting on again
+		ClientSession session = null;
+		ResponseCache cache = null;
+		ByteBuffer question = null;
+		if (!clientPkt.isSpecial()) {
+			session = getSession(clientPkt.getClientID());
+			cache = session == null ? null : session.responseCache;
+			question = DNSWire.copyQuestion(request.data);
+		}
+		if (cache != null && question != null && !request.resumed) {
+			byte [] cached = cache.get(question, System.currentTimeMillis());
+			if (cached != null && cached.length <= maxLength) {
+				cacheHits.incrementAndGet();
+				Log.get().println(Log.LEVEL_SPAM, "Replaying answer to retried query: " + clientPkt);
+				ByteBuffer response = buffers.wrap(cached);
+				response.putShort(DNSWire.OFFSET_ID, request.data.getShort(DNSWire.OFFSET_ID));
+				return response;
+			}
+			cacheMisses.incrementAndGet();
+		}
 		
-		Packet clientPkt;
+		boolean edns = payloadSize != -1;
+		ArrayList<Packet> responsePkts = new ArrayList<Packet>(1);
 		Packet responsePkt;
 		try {
-			
-			clientPkt = ClientPacket.decodeClientPacket(queryRecord.getName(), serverOpts.domain);
 			Log.get().println(Log.LEVEL_SPAM, "Received: " + clientPkt);
 
 			if (!clientPkt.isChecksumValid()) {
@@ -191,10 +297,31 @@ public class Server {
 			//special protocol message
 			if (clientPkt.isSpecial()) {
 				try {
-					responsePkt = handleSpecialPacket((SpecialClientPacket) clientPkt, isTXT);
+					//tcp could take far more, but the connection's later queries may come over udp
+					responsePkt = handleSpecialPacket((SpecialClientPacket) clientPkt, isTXT, Math.min(maxLength, serverOpts.ednsSize));
 				} catch (Exception e) {
 					Log.get().exception(Log.LEVEL_ERROR, e);
-					return errorMessage(query, Rcode.FORMERR);
+					return errorMessage(request.getQuery(), Rcode.FORMERR);
+				}
+				//the forward side's answer to early data goes back with the accept
+				if (responsePkt instanceof ConnectionAcceptedServerPacket && isTXT &&
+						((ConnectionRequestClientPacket) clientPkt).getEarlyData() != null) {
+					short newClientId = responsePkt.getClientID();
+					ConnectionState client = getClient(newClientId);
+					ClientSession newSession = getSession(newClientId);
+					if (client != null && newSession != null && newSession.multiplePackets) {
+						responsePkts.add(responsePkt);
+						boolean waiting;
+						synchronized (client) {
+							packMorePackets(client, newSession, responsePkts, request.data, maxLength, edns);
+							waiting = client.hasDataWaiting();
+						}
+						if (responsePkts.size() == 1 && !waiting) {
+							if (heldQueries.hold(request, newClientId, null, EARLY_DATA_HOLD) == HeldQueries.HELD) {
+								return HELD_REPLY;
+							}
+						}
+					}
 				}
 			} else {//general data message
 				ConnectionState client = getClient(clientPkt.getClientID());
@@ -202,80 +329,276 @@ public class Server {
 					Log.get().println(Log.LEVEL_WARN, "Message from unknown client! ClientID: " + (0xffff & clientPkt.getClientID()));
 					responsePkt = new ConnectionClosedServerPacket(clientPkt.getClientID());
 				} else {
-					//its possible that 2 messages could come in on different UDP serving threads at the same time
+					//the pipeline keeps a client on one worker, but the timeout thread may still poke at it
 					synchronized (client) {
-						client.dnsPacketReceived(clientPkt);
+						//a held query was taken in the first time through
+						if (!request.resumed) {
+							client.dnsPacketReceived(clientPkt);
+						}
 						responsePkt = (ServerPacket) client.update();
+						responsePkts.add(responsePkt);
+						//a TXT answer with room left over takes more packets
+						if (session != null && session.multiplePackets && isTXT && !responsePkt.isNoOp() && !responsePkt.isSpecial()) {
+							//tcp could take far more, but the resolver passes it on in what the connection agreed on
+							packMorePackets(client, session, responsePkts, request.data, Math.min(maxLength, session.accept.getEdnsSize()), edns);
+						}
+					}
+					//neither side has anything to say, wait for the forward side to speak up
+					if (clientPkt.isNoOp() && responsePkt.isNoOp() && !responsePkt.isSpecial()) {
+						if (heldQueries.hold(request, clientPkt.getClientID(), question) == HeldQueries.HELD) {
+							return HELD_REPLY;
+						}
 					}
 				}
 			}
 		} catch (Exception e) {
 			Log.get().exception(Log.LEVEL_ERROR, e);
-			return errorMessage(query, Rcode.FORMERR);
+			return errorMessage(request.getQuery(), Rcode.FORMERR);
 		}
 
+		if (responsePkts.isEmpty()) {
+			responsePkts.add(responsePkt);
+		}
 		//byte [] randAddr = new byte[4];
 		//rand.nextBytes(randAddr);
-		responsePkt.updateChecksum();
+		for (Packet pkt : responsePkts) {
+			pkt.updateChecksum();
+		}
 		
-		Record responseRecord;
-		if (isTXT) {
-			responseRecord = responsePkt.encodeAsTxt(queryRecord.getName(), DClass.IN, Common.DEFAULT_TTL); 
-		} else {
-			responseRecord = responsePkt.encodeAsCname(queryRecord.getName(), DClass.IN, Common.DEFAULT_TTL);
+		ByteBuffer response = buffers.acquire();
+		if (!writeAnswer(request.data, response, maxLength, responsePkts, isTXT, edns)) {
+			//odd question or an answer too big, dnsjava knows how to truncate
+			buffers.release(response);
+			response = buffers.wrap(buildAnswerMessage(request.getQuery(), responsePkts, isTXT, edns).toWire(maxLength));
+		}
+		
+		if (cache != null && question != null) {
+			byte [] wire = new byte [response.remaining()];
+			response.duplicate().get(wire);
+			cache.put(question, wire, System.currentTimeMillis());
+		}
+		
+		for (Packet pkt : responsePkts) {
+			Log.get().println(Log.LEVEL_SPAM, "Sent: " + pkt);
 		}
-		assert (null != ServerPacket.decodeServerPacket(responseRecord));
 
+		return response;
+	}
+	
+	/**
+	 * Fills what room is left in a TXT answer with more of the client's 
+	 * packets, each one its own answer record. Call with client locked.
+	 */
+	private void packMorePackets(ConnectionState client, ClientSession session, List<Packet> responsePkts, ByteBuffer query, int maxLength, boolean edns) {
+		int questionEnd = DNSWire.endOfQuestion(query);
+		if (questionEnd == -1) {
+			return;
+		}
+		//the header and question are copied from the query
+		int remaining = maxLength - questionEnd - session.truncationAllowance - DNSSizes.DNS_FUDGE_FACTOR - (edns ? DNSSizes.OPT_RECORD_SIZE : 0);
+		for (Packet pkt : responsePkts) {
+			remaining -= ANSWER_OVERHEAD + pkt.txtRdataLength();
+		}
+		
+		while (responsePkts.size() < MAX_PACKETS_PER_ANSWER) {
+			int maxData = Packet.maxTxtDataLength(remaining - ANSWER_OVERHEAD);
+			if (maxData < 0) {
+				break;
+			}
+			Packet next = client.updateIfFits(maxData);
+			if (next == null) {
+				break;
+			}
+			responsePkts.add(next);
+			remaining -= ANSWER_OVERHEAD + next.txtRdataLength();
+		}
+	}
+	
+	/**
+	 * Writes the reply straight into out: the header, the question copied 
+	 * byte for byte from the query and an answer holding each packet.
+	 * @param edns add an OPT record, the query had one
+	 * @return false if the question is unusual or the answer doesnt fit,
+	 *         the contents of out are undefined then
+	 */
+	private boolean writeAnswer(ByteBuffer query, ByteBuffer out, int maxLength, List<Packet> responsePkts, boolean isTXT, boolean edns) throws ProtocolException {
+		int questionEnd = DNSWire.endOfQuestion(query);
+		if (questionEnd == -1) {
+			return false;
+		}
 		
-		response.addRecord(responseRecord, Section.ANSWER);
+		out.clear();
+		out.limit(Math.min(maxLength, out.capacity()));
+		try {
+			int id = query.getShort(DNSWire.OFFSET_ID) & 0xffff;
+			DNSWire.writeHeader(out, id, DNSWire.FLAG_QR | DNSWire.FLAG_AA | DNSWire.FLAG_RD | DNSWire.FLAG_RA, Rcode.NOERROR, 1, responsePkts.size(), 0, edns ? 1 : 0);
+			//copying keeps the question's exact case for resolvers using the 0x20 hack
+			for (int i=DNSWire.OFFSET_QUESTION; i<questionEnd; i++) {
+				out.put(query.get(i));
+			}
+			
+			for (Packet responsePkt : responsePkts) {
+				int rdLengthOffset = DNSWire.startAnswer(out, isTXT ? DNSWire.TYPE_TXT : DNSWire.TYPE_CNAME, Common.DEFAULT_TTL);
+				if (isTXT) {
+					responsePkt.writeTxtRdata(out);
+				} else {
+					responsePkt.writeCnameRdata(out);
+				}
+				DNSWire.endRecord(out, rdLengthOffset);
+			}
+			if (edns) {
+				DNSWire.writeOPT(out, serverOpts.ednsSize);
+			}
+		} catch (BufferOverflowException e) {
+			return false;
+		}
+		out.flip();
+		return true;
+	}
+	
+	private Message buildAnswerMessage(Message query, List<Packet> responsePkts, boolean isTXT, boolean edns) throws ProtocolException {
+		Record queryRecord = query.getQuestion();
 		
-		Log.get().println(Log.LEVEL_SPAM, "Sent: " + responsePkt);
+		Message response = new Message(query.getHeader().getID());
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setFlag(Flags.RD);
+		response.getHeader().setFlag(Flags.RA);
+		response.getHeader().setFlag(Flags.AA);
+		response.addRecord(queryRecord, Section.QUESTION);
+		
+		for (Packet responsePkt : responsePkts) {
+			Record responseRecord;
+			if (isTXT) {
+				responseRecord = responsePkt.encodeAsTxt(queryRecord.getName(), DClass.IN, Common.DEFAULT_TTL); 
+			} else {
+				responseRecord = responsePkt.encodeAsCname(queryRecord.getName(), DClass.IN, Common.DEFAULT_TTL);
+			}
+			response.addRecord(responseRecord, Section.ANSWER);
+		}
+		if (edns) {
+			response.addRecord(new OPTRecord(serverOpts.ednsSize, 0, 0), Section.ADDITIONAL);
+		}
+		return response;
+	}
 
-		return response.toWire(determineMaxResponseLength(s, query.getOPT()));
+	/**
+	 * Makes a new connection to the forward address, or finds the one made
+	 * for a retried request.
+	 * @param windowSize the window asked for with 16 bit packet ids
+	 * @param earlyData bytes to write to a tcp connection first, may be null
+	 * @return the accept to send back
+	 */
+	private ConnectionAcceptedServerPacket acceptConnection(int challengeId, int maxMTU, int lateTimer, int requestFlags, 
+			int truncationAllowance, int windowSize, byte [] earlyData, boolean isTXT, int maxResponseSize) throws Exception {
+		//a resolver retrying the request gets the connection made the first time
+		synchronized (clients) {
+			Short acceptedId = challenges.get(challengeId);
+			if (acceptedId != null && sessions.get(acceptedId) != null) {
+				return sessions.get(acceptedId).accept;
+			}
+		}
+		
+		short clientId = getOpenClientId();
+		int mtu = Math.min(maxMTU, serverOpts.mtu);
+		boolean tcp = (requestFlags & ConnectionRequestClientPacket.FLAG_TCP) != 0;
+		boolean multiPacket = (requestFlags & ConnectionRequestClientPacket.FLAG_MULTI_PACKET) != 0;
+		boolean multiplex = tcp && (requestFlags & ConnectionRequestClientPacket.FLAG_MULTIPLEX) != 0;
+		boolean wideIds = (requestFlags & ConnectionRequestClientPacket.FLAG_WIDE_IDS) != 0 && windowSize > 0;
+		int window = wideIds ? Math.min(windowSize, serverOpts.maxWindow) : ConnectionState.WINDOW_SIZE;
+		boolean selectiveAcks = (requestFlags & ConnectionRequestClientPacket.FLAG_SACK) != 0;
+		
+		PortCommunicator comm;
+		if (multiplex) {
+			//the streams connect to the forward address as the client opens them
+			comm = new MuxPortCommunicator(forwardAddress);
+			Log.get().println(Log.LEVEL_INFO, "New multiplexed client connection:" + (clientId & 0xffff));
+		} else if (tcp) {
+			Socket tcpSock = new Socket(serverOpts.forwardAddr, serverOpts.forwardPort);
+			tcpSock.setTcpNoDelay(true);
+			tcpSock.setReceiveBufferSize(Common.DEFAULT_MTU);
+			comm = new TCPPortCommunicator(tcpSock);
+			Log.get().println(Log.LEVEL_INFO, "New tcp client connection:" + (clientId & 0xffff));
+		} else {
+			UDPPortCommunicator udpComm = new UDPPortCommunicator(new DatagramSocket(0), mtu, lateTimer*2, false); 
+			udpComm.addPortForward(forwardAddress);
+			comm = udpComm;
+			Log.get().println(Log.LEVEL_INFO, "New udp client connection:" + (clientId & 0xffff));
+		}
+		final short heldClientId = clientId;
+		comm.addListener(new PortCommunicatorListener() {
+			public void onPacketReceived() {
+				heldQueries.release(heldClientId);
+			}
+		});
+		
+		ConnectionState newConnection = new ConnectionState(clientId, 
+				new LZMAPacketConverter(),
+				new ServerPacketFactory(serverOpts.domain,
+						truncationAllowance,
+						isTXT ? Packet.ENC_TXT : Packet.ENC_SAFE16,
+						maxResponseSize,
+						wideIds),
+
+				comm,
+				lateTimer,
+				//never throttle the server
+				false,
+				window);
+		
+		newConnection.setSelectiveAcks(selectiveAcks);
+		
+		//start listening AFTER the listeners have been added by the connection state
+		comm.start();
+		
+		//the early data comes ahead of everything the sliding window delivers
+		if (earlyData != null && tcp && !multiplex) {
+			Log.get().println(Log.LEVEL_SPAM, "Early data for client:" + (clientId & 0xffff) + " bytes:" + earlyData.length);
+			comm.sendPacket(earlyData);
+		}
+		
+		int acceptFlags = ConnectionAcceptedServerPacket.FLAG_EARLY_DATA | ConnectionAcceptedServerPacket.FLAG_BATCH;
+		if (multiplex) {
+			acceptFlags |= ConnectionAcceptedServerPacket.FLAG_MULTIPLEX;
+		}
+		if (wideIds) {
+			acceptFlags |= ConnectionAcceptedServerPacket.FLAG_WIDE_IDS;
+		}
+		if (selectiveAcks) {
+			acceptFlags |= ConnectionAcceptedServerPacket.FLAG_SACK;
+		}
+		ConnectionAcceptedServerPacket cap = new ConnectionAcceptedServerPacket(clientId, mtu, challengeId, maxResponseSize, acceptFlags);
+		cap.setWindowSize(window);
+		synchronized (clients) {
+			clients.put(clientId, newConnection);
+			sessions.put(clientId, new ClientSession(multiPacket, truncationAllowance, cap));
+			challenges.put(challengeId, clientId);
+		}
+		return cap;
 	}
 
-	private ServerPacket handleSpecialPacket(SpecialClientPacket clientPkt, boolean isTXT) throws Exception {
+	/**
+	 * @param maxResponseSize how much the resolver asking lets us send back,
+	 *        new connections get packets sized to fit it
+	 */
+	private ServerPacket handleSpecialPacket(SpecialClientPacket clientPkt, boolean isTXT, int maxResponseSize) throws Exception {
 		switch (clientPkt.getType()) {
 		case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_REQUEST:
 			ConnectionRequestClientPacket crcp = (ConnectionRequestClientPacket) clientPkt; 
-			short clientId = getOpenClientId();
-			int mtu = Math.min(crcp.getMaxMTU(), serverOpts.mtu);
-			boolean tcp = (crcp.getRequestFlags() & ConnectionRequestClientPacket.FLAG_TCP) != 0;
-			int truncationAllowance = crcp.getTruncationAllowance();
-			
-			PortCommunicator comm;
-			if (tcp) {
-				Socket tcpSock = new Socket(serverOpts.forwardAddr, serverOpts.forwardPort);
-				tcpSock.setTcpNoDelay(true);
-				tcpSock.setReceiveBufferSize(Common.DEFAULT_MTU);
-				comm = new TCPPortCommunicator(tcpSock);
-				Log.get().println(Log.LEVEL_INFO, "New tcp client connection:" + (clientId & 0xffff));
-			} else {
-				UDPPortCommunicator udpComm = new UDPPortCommunicator(new DatagramSocket(0), mtu, crcp.getLateTimer()*2, false); 
-				udpComm.addPortForward(forwardAddress);
-				comm = udpComm;
-				Log.get().println(Log.LEVEL_INFO, "New udp client connection:" + (clientId & 0xffff));
-			}
-			
-			ConnectionState newConnection = new ConnectionState(clientId, 
-					new LZMAPacketConverter(),
-					new ServerPacketFactory(serverOpts.domain,
-							truncationAllowance,
-							isTXT ? Packet.ENC_TXT : Packet.ENC_SAFE16),
-
-					comm,
-					crcp.getLateTimer(),
-					//never throttle the server
-					false);
-			
-			//start listening AFTER the listeners have been added by the connection state
-			comm.start();
-			
-			synchronized (clients) {
-				clients.put(clientId, newConnection);
+			return acceptConnection(crcp.getChallengeId(), crcp.getMaxMTU(), crcp.getLateTimer(), 
+					crcp.getRequestFlags(), crcp.getTruncationAllowance(), crcp.getWindowSize(), crcp.getEarlyData(), isTXT, maxResponseSize);
+		case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_BATCH_REQUEST:
+			ConnectionBatchRequestClientPacket batch = (ConnectionBatchRequestClientPacket) clientPkt;
+			//the client only batches as many as fit in one answer
+			int count = Math.min(batch.getCount(), ConnectionBatchAcceptedServerPacket.maxCount(
+					Packet.maxDataLength(serverOpts.domain, batch.getTruncationAllowance(), 
+							isTXT ? Packet.ENC_TXT : Packet.ENC_SAFE16) - Packet.FIXED_HEADER_SIZE));
+			ConnectionAcceptedServerPacket [] accepts = new ConnectionAcceptedServerPacket [count];
+			for (int i=0; i<count; i++) {
+				accepts[i] = acceptConnection(batch.getChallengeId(i), batch.getMaxMTU(), batch.getLateTimer(), 
+						batch.getRequestFlags(i), batch.getTruncationAllowance(), batch.getWindowSize(), null, isTXT, maxResponseSize);
 			}
-			ConnectionAcceptedServerPacket cap = new ConnectionAcceptedServerPacket(clientId, mtu, crcp.getChallengeId());
-			return cap;
+			Log.get().println(Log.LEVEL_INFO, "Accepted a batch of " + count + " connections.");
+			return new ConnectionBatchAcceptedServerPacket(accepts, count);
 		case SpecialClientPacket.SPECIAL_TYPE_CONNECTION_CLOSED:
 			ConnectionClosedClientPacket closeReq = (ConnectionClosedClientPacket) clientPkt; 
 			ConnectionState client = removeClient(closeReq.getClientID());
@@ -296,8 +619,27 @@ public class Server {
 		}
 	}
 	
+	private ClientSession getSession(short clientId) {
+		synchronized (clients) {
+			return sessions.get(clientId);
+		}
+	}
+	
+	/**
+	 * Call with clients locked.
+	 */
+	private void removeSession(short clientId) {
+		ClientSession session = sessions.remove(clientId);
+		if (session != null) {
+			challenges.remove(session.accept.getChallengeId());
+			ResponseCache cache = session.responseCache;
+			Log.get().println(Log.LEVEL_SPAM, "Retried query cache (ClientID:" + (0xFFFF & clientId) + ") hits:" + cache.getHits() + " misses:" + cache.getMisses());
+		}
+	}
+	
 	private ConnectionState removeClient(short clientID) {
 		synchronized (clients) {
+			removeSession(clientID);
 			return clients.remove(clientID);
 		}
 	}
@@ -315,18 +657,33 @@ public class Server {
 		throw new Exception("No Open Client Slots!?");
 	}
 	
-	private static int determineMaxResponseLength(Socket s, OPTRecord queryOPT) {
-		/*int maxLength;
+	/**
+	 * @return the udp payload size the query's OPT record advertises, or -1
+	 *         if it has none
+	 */
+	private static int queryPayloadSize(DNSRequest request) {
+		int payloadSize = DNSWire.getUDPPayloadSize(request.data);
+		if (payloadSize == -1 && request.query != null) {
+			OPTRecord queryOPT = request.query.getOPT();
+			if (queryOPT != null) {
+				payloadSize = queryOPT.getPayloadSize();
+			}
+		}
+		return payloadSize;
+	}
+	
+	/**
+	 * Over tcp an answer could be 65535 bytes, but the resolver passes it on
+	 * to the client in what the connection agreed on, which is never more 
+	 * than --edns-size. Tcp answers are kept to a pooled reply buffer, which
+	 * is at least that big, so they are always written directly.
+	 */
+	private int determineMaxResponseLength(Socket s, int queryPayloadSize) {
 		if (s != null) {
-			maxLength = 65535;
-		} else if (queryOPT != null) {
-			maxLength = Math.max(queryOPT.getPayloadSize(), 512);
-		} else {
-			maxLength = 512;
+			return buffers.getBufferSize();
 		}
-		return maxLength;
-		*/
-		return 512;
+		//what the resolver can take, but no more than we are willing to send
+		return Math.max(DNSSizes.MAX_PACKET_SIZE, Math.min(queryPayloadSize, serverOpts.ednsSize));
 	}
 
 	byte[] buildErrorMessage(Header header, int rcode, Record question) {
@@ -344,88 +701,238 @@ public class Server {
 		return response.toWire();
 	}
 
-	public byte[] formerrMessage(byte[] in) {
+	public ByteBuffer formerrMessage(ByteBuffer in) {
 		Header header;
 		try {
-			header = new Header(in);
+			header = new Header(DNSWire.toArray(in));
 		} catch (IOException e) {
 			return null;
 		}
-		return buildErrorMessage(header, Rcode.FORMERR, null);
+		return buffers.wrap(buildErrorMessage(header, Rcode.FORMERR, null));
 	}
 
-	public byte[] errorMessage(Message query, int rcode) {
-		return buildErrorMessage(query.getHeader(), rcode, query.getQuestion());
+	public ByteBuffer errorMessage(Message query, int rcode) {
+		return buffers.wrap(buildErrorMessage(query.getHeader(), rcode, query.getQuestion()));
 	}
 	
-	private void serveDNS(InetAddress addr, int port) {
+	/**
+	 * The receive stage. Decodes the tunnel packet so the pipeline knows 
+	 * which client it belongs to. Plain tunnel queries are read straight off
+	 * the wire, anything else is parsed by dnsjava.
+	 */
+	void receivedDNS(DNSRequest request) {
+		if (decodeWireQuestion(request)) {
+			submit(request);
+			return;
+		}
+		
 		try {
-			
-			DatagramChannel chan = DatagramChannel.open();
-			chan.socket().bind(new InetSocketAddress(addr, port));
-			
-			serveDNS(chan);
+			request.getQuery();
+		} catch (IOException e) {
+			Log.get().exception(Log.LEVEL_ERROR, e);
+			request.response = formerrMessage(request.data);
+			buffers.release(request.data);
+			request.data = null;
+			if (request.response != null) {
+				pipeline.send(request);
+			}
+			return;
 		}
-		catch (IOException e) {
-			Log.get().exception(Log.LEVEL_INFO, e);
+		
+		request.clientPkt = decodeQuestion(request.query);
+		submit(request);
+	}
+	
+	private void submit(DNSRequest request) {
+		if (!pipeline.submit(request)) {
+			if (request.listener != null) {
+				request.listener.countDropped();
+			}
+			buffers.release(request.data);
 		}
 	}
 	
-	private void serveDNS(DatagramChannel chan) {
-		ByteBuffer in = ByteBuffer.allocate(512);
+	/**
+	 * Fills in request.clientPkt and request.qtype without dnsjava.
+	 * @return false if the query needs the slow path
+	 */
+	private boolean decodeWireQuestion(DNSRequest request) {
+		byte [] symbols = querySymbols.get();
+		int numSymbols = DNSWire.readQuerySymbols(request.data, domainWire, symbols);
+		if (numSymbols == -1) {
+			return false;
+		}
 		
 		try {
-			while (true) {
-				SocketAddress from;
-				
-				try {
-					from = chan.receive(in);
-				} catch (InterruptedIOException e) {
-					continue;
+			request.clientPkt = ClientPacket.decodeClientPacket(Packet.decodeLabelSymbols(symbols, 0, numSymbols));
+		} catch (Exception e) {
+			//let the slow path report it
+			return false;
+		}
+		request.qtype = DNSWire.getQuestionType(request.data);
+		return true;
+	}
+	
+	/**
+	 * @return the tunnel packet in the question, or null if there isn't a
+	 *         usable one. generateReply reports the problem in that case.
+	 */
+	private ClientPacket decodeQuestion(Message query) {
+		Record queryRecord = query.getQuestion();
+		if (queryRecord == null || query.getHeader().getFlag(Flags.QR)) {
+			return null;
+		}
+		
+		int type = queryRecord.getType();
+		if (type != Type.TXT && type != Type.CNAME) {
+			return null;
+		}
+		
+		try {
+			return ClientPacket.decodeClientPacket(queryRecord.getName(), serverOpts.domain);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Opens serverOpts.dnsShards sockets on the address and port, spread over
+	 * the selector threads. Past the first they share the port with
+	 * SO_REUSEPORT and the kernel balances the queries between them.
+	 */
+	public void addUDP(final InetAddress addr, final int port) {
+		int shards = serverOpts.dnsShards;
+		//anything already on the port isnt ours
+		HashSet<Long> knownInodes = new HashSet<Long>(KernelUDPStats.readDropsByInode(port).keySet());
+		
+		for (int i=0; i<shards; i++) {
+			DatagramChannel chan = null;
+			try {
+				chan = DatagramChannel.open();
+				if (shards > 1 && !setReusePort(chan)) {
+					Log.get().println(Log.LEVEL_WARN, "SO_REUSEPORT is not available, using one socket for " + addr + ":" + port);
+					shards = 1;
 				}
-				
-				// We are done receiving into this buffer
-				in.flip();
-				// Get just the used bytes
-				byte[] request = in.slice().array();
-				byte[] response = null;
-				try {
-					Message query = new Message(request);
-					//System.out.println(query.toString());
-					response = generateReply(query, null);
-				} catch (IOException e) {
-					Log.get().exception(Log.LEVEL_ERROR, e);
-					response = formerrMessage(request);
+				chan.socket().setReceiveBufferSize(serverOpts.dnsReceiveBuffer);
+				chan.socket().bind(new InetSocketAddress(addr, port));
+			} catch (IOException e) {
+				if (chan != null) {
+					try {
+						chan.close();
+					} catch (IOException e2) {
+					}
+				}
+				//without the first socket the address isnt served at all, later
+				//ones only spread the load
+				if (i == 0) {
+					Log.get().println(Log.LEVEL_ERROR, "Could not open a dns socket on " + addr + ":" + port + ": " + e.getMessage());
+					return;
 				}
+				Log.get().println(Log.LEVEL_WARN, "Could not open dns socket #" + i + " on " + addr + ":" + port + ", going on with the others: " + e.getMessage());
+				continue;
+			}
+			
+			int actualBuffer = serverOpts.dnsReceiveBuffer;
+			try {
+				actualBuffer = chan.socket().getReceiveBufferSize();
+			} catch (IOException e) {
+			}
+			if (actualBuffer < serverOpts.dnsReceiveBuffer) {
+				Log.get().println(Log.LEVEL_WARN, "DNS receive buffer capped at " + actualBuffer + " bytes by the OS (see net.core.rmem_max)");
+			}
 
-				//no response? dont send anything
-				if (response == null) {
-					continue;
+			DNSListener listener = new DNSListener(chan, addr + ":" + port + (shards > 1 ? "#" + i : ""));
+			//the socket that just showed up on the port is this one
+			for (Long inode : KernelUDPStats.readDropsByInode(port).keySet()) {
+				if (knownInodes.add(inode)) {
+					listener.setInode(inode);
+					break;
 				}
-				
-				//System.out.println("sending to:" + dpOut.getAddress() + " port:" + dpOut.getPort());
-				chan.send(ByteBuffer.wrap(response), from);
-				
-				// clear the buffer
-				in.clear();
 			}
+			try {
+				addListener(listener);
+			} catch (IOException e) {
+				Log.get().exception(Log.LEVEL_INFO, e);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Starts accepting dns over tcp on the address and port.
+	 */
+	public void addTCP(InetAddress addr, int port) {
+		try {
+			new DNSTCPListener(this, buffers, addr, port).start();
 		} catch (IOException e) {
-			Log.get().exception(Log.LEVEL_INFO, e);
+			Log.get().println(Log.LEVEL_WARN, "Could not listen for dns over tcp on " + addr + ":" + port + ": " + e.getMessage());
 		}
-
 	}
 	
-	public void addUDP(final InetAddress addr, final int port) {
-		Thread t = new Thread("DNS Serve " + addr + ":" + port) {
-			public void run() {
-				serveDNS(addr, port);
+	/**
+	 * Hands a bound socket to the next selector thread, round robin.
+	 */
+	private void addListener(DNSListener listener) throws IOException {
+		DNSSelectorLoop loop;
+		synchronized (listeners) {
+			loop = selectorLoops[listeners.size() % selectorLoops.length];
+			listeners.add(listener);
+		}
+		loop.addListener(listener);
+	}
+	
+	/**
+	 * SO_REUSEPORT only exists in java 7+ VMs (as a named option in 9+), so
+	 * look it up at runtime to keep running on the old ones.
+	 * @return true if the option was set
+	 */
+	private static boolean setReusePort(DatagramChannel chan) {
+		try {
+			Object reusePort = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			Class<?> socketOption = Class.forName("java.net.SocketOption");
+			Method setOption = DatagramChannel.class.getMethod("setOption", socketOption, Object.class);
+			setOption.invoke(chan, reusePort, Boolean.TRUE);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Logs the per socket counters. Kernel drops are only known on linux.
+	 */
+	private void logListenerStats() {
+		synchronized (listeners) {
+			HashMap<Integer, HashMap<Long, Long>> dropsByPort = new HashMap<Integer, HashMap<Long, Long>>();
+			for (DNSListener listener : listeners) {
+				long newDrops = 0;
+				if (listener.getInode() != DNSListener.INODE_UNKNOWN) {
+					int port = listener.getChannel().socket().getLocalPort();
+					HashMap<Long, Long> drops = dropsByPort.get(port);
+					if (drops == null) {
+						drops = KernelUDPStats.readDropsByInode(port);
+						dropsByPort.put(port, drops);
+					}
+					Long kernelDrops = drops.get(listener.getInode());
+					if (kernelDrops != null) {
+						newDrops = listener.updateKernelDrops(kernelDrops);
+					}
+				}
+				
+				//only bother people when the kernel is throwing queries away
+				int level = newDrops > 0 ? Log.LEVEL_INFO : Log.LEVEL_SPAM;
+				Log.get().println(level, "DNS socket " + listener + 
+						" received:" + listener.getReceived() + 
+						" worker drops:" + listener.getDropped() + 
+						" kernel drops:" + listener.getKernelDrops() + " (+" + newDrops + ")");
 			}
-		};
-		t.start();
+		}
+		Log.get().println(Log.LEVEL_SPAM, "Retried query cache hits:" + cacheHits.get() + " misses:" + cacheMisses.get());
 	}
 
 	private class ClientTimeoutThread extends Thread {
 		private int idleCount = 0;
+		private int statsCount = 0;
 		
 		public ClientTimeoutThread() {
 			super("Client timeout");
@@ -441,6 +948,11 @@ public class Server {
 				
 				timeoutClients();
 				timeoutServer();
+				
+				if (++statsCount >= STATS_INTERVAL) {
+					statsCount = 0;
+					logListenerStats();
+				}
 			}
 		}
 		
@@ -458,6 +970,7 @@ public class Server {
 						}
 						client.close();
 						iter.remove();
+						removeSession(client.getClientId());
 					}
 				}
 			}
@@ -11,6 +11,8 @@ import java.util.Vector;
 import common.Common;
 import common.CommonCmdLineParser;
 import common.CommonOptions;
+import common.ConnectionState;
+import common.DNSSizes;
 
 public class ServerCmdLineParser extends CommonCmdLineParser {
 	private Option dnsAddr;
@@ -18,6 +20,14 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 	private Option fwdAddr;
 	private Option fwdPort;
 	private Option idleTimeout;
+	private Option workerThreads;
+	private Option dnsShards;
+	private Option dnsSelectors;
+	private Option dnsReceiveBuffer;
+	private Option directBuffers;
+	private Option noDnsTCP;
+	private Option longPoll;
+	private Option maxWindow;
 	
 	public ServerCmdLineParser() {
 		dnsAddr = addStringOption("dns-address");
@@ -25,6 +35,14 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 		fwdAddr = addStringOption("forward-address");
 		fwdPort = addIntegerOption("forward-port");
 		idleTimeout = addIntegerOption("idle-timeout");
+		workerThreads = addIntegerOption("worker-threads");
+		dnsShards = addIntegerOption("dns-shards");
+		dnsSelectors = addIntegerOption("dns-selectors");
+		dnsReceiveBuffer = addIntegerOption("dns-rcvbuf");
+		directBuffers = addBooleanOption("direct-buffers");
+		noDnsTCP = addBooleanOption("no-dns-tcp");
+		longPoll = addIntegerOption("long-poll");
+		maxWindow = addIntegerOption("max-window");
 	}
 
 	@SuppressWarnings("unchecked")
@@ -39,6 +57,7 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 			result.mtu = commonOpts.mtu;
 			result.logLevel = commonOpts.logLevel;
 			result.logFile = commonOpts.logFile;
+			result.ednsSize = commonOpts.ednsSize;
 			
 			Vector<?> listenStrings = getOptionValues(dnsAddr);
 			for (Object listenStringObj : listenStrings) {
@@ -63,6 +82,46 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 				result.idleTimeout = idleTimeout;
 			}
 			
+			Integer workerThreads = (Integer) getOptionValue(this.workerThreads);
+			if (workerThreads != null) {
+				result.workerThreads = workerThreads;
+			}
+			
+			Integer dnsShards = (Integer) getOptionValue(this.dnsShards);
+			if (dnsShards != null) {
+				result.dnsShards = dnsShards;
+			}
+			
+			Integer dnsSelectors = (Integer) getOptionValue(this.dnsSelectors);
+			if (dnsSelectors != null) {
+				result.dnsSelectors = dnsSelectors;
+			}
+			
+			Integer dnsReceiveBuffer = (Integer) getOptionValue(this.dnsReceiveBuffer);
+			if (dnsReceiveBuffer != null) {
+				result.dnsReceiveBuffer = dnsReceiveBuffer;
+			}
+			
+			Boolean directBuffers = (Boolean) getOptionValue(this.directBuffers);
+			if (directBuffers != null) {
+				result.directBuffers = directBuffers;
+			}
+			
+			Boolean noDnsTCP = (Boolean) getOptionValue(this.noDnsTCP);
+			result.dnsTCP = noDnsTCP == null || !noDnsTCP;
+			
+			Integer longPoll = (Integer) getOptionValue(this.longPoll);
+			if (longPoll != null) {
+				result.longPoll = longPoll;
+			} else {
+				result.longPoll = -1;
+			}
+			
+			Integer maxWindow = (Integer) getOptionValue(this.maxWindow);
+			if (maxWindow != null) {
+				result.maxWindow = maxWindow;
+			}
+			
 			setDefaults(result);
 
 			//we do this here because we depend on this
@@ -109,6 +168,29 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 		if (result.mtu <= 0) {
 			result.mtu = Common.DEFAULT_MTU;
 		}
+		if (result.workerThreads <= 0) {
+			result.workerThreads = Runtime.getRuntime().availableProcessors();
+		}
+		if (result.dnsShards <= 0) {
+			result.dnsShards = Server.DEFAULT_DNS_SHARDS;
+		}
+		if (result.dnsSelectors <= 0) {
+			//one thread per shard keeps the shards working in parallel
+			result.dnsSelectors = result.dnsShards;
+		}
+		if (result.dnsReceiveBuffer <= 0) {
+			result.dnsReceiveBuffer = Server.DEFAULT_DNS_RECEIVE_BUFFER;
+		}
+		if (result.ednsSize <= 0) {
+			result.ednsSize = DNSSizes.MAX_EDNS_SIZE;
+		}
+		if (result.longPoll < 0) {
+			result.longPoll = Server.DEFAULT_LONG_POLL;
+		}
+		if (result.maxWindow <= 0) {
+			result.maxWindow = Server.DEFAULT_MAX_WINDOW;
+		}
+		result.maxWindow = Math.min(result.maxWindow, ConnectionState.MAX_WINDOW_SIZE);
 	}
 
 	public void printUsage() {
@@ -127,6 +209,24 @@ public class ServerCmdLineParser extends CommonCmdLineParser {
 		System.err.println("--mtu             bytes    Set the udp maximum MTU. Defaults to " + Common.DEFAULT_MTU + ".");
 		System.err.println("--idle-timeout    seconds  Close the server after this much time elapses");
 		System.err.println("                           without a client connecting. Disabled by default.");
+		System.err.println("--worker-threads  count    Number of threads building dns replies. Defaults");
+		System.err.println("                           to the number of processors.");
+		System.err.println("--dns-shards      count    Number of sockets to open on each dns address and");
+		System.err.println("                           port, shared with SO_REUSEPORT. Defaults to " + Server.DEFAULT_DNS_SHARDS + ".");
+		System.err.println("--dns-selectors   count    Number of threads receiving from the dns sockets.");
+		System.err.println("                           Defaults to the --dns-shards count.");
+		System.err.println("--dns-rcvbuf      bytes    Receive buffer size of each dns socket. Defaults to");
+		System.err.println("                           " + Server.DEFAULT_DNS_RECEIVE_BUFFER + ".");
+		System.err.println("--direct-buffers           Use direct (off heap) buffers for dns packets.");
+		System.err.println("--no-dns-tcp               Only answer dns over udp, by default the dns");
+		System.err.println("                           address and port also accept tcp.");
+		System.err.println("--edns-size       bytes    The largest dns response to send resolvers that");
+		System.err.println("                           support EDNS0. Defaults to " + DNSSizes.MAX_EDNS_SIZE + ",");
+		System.err.println("                           " + DNSSizes.MAX_PACKET_SIZE + " turns EDNS0 off.");
+		System.err.println("--long-poll       ms       Hold idle client polls this long waiting for data");
+		System.err.println("                           to answer them with. Defaults to " + Server.DEFAULT_LONG_POLL + ", 0 disables.");
+		System.err.println("--max-window      packets  The most packets a client connection may have in");
+		System.err.println("                           flight each way. Defaults to " + Server.DEFAULT_MAX_WINDOW + ".");
 		System.err.println("--log-file        file     Instead of logging to std err, log to this file.");
 		System.err.println("--log-level       0-5      The amount of information to display. Defaults to 3.");
 		System.err.println("                           0: Display nothing.");
@@ -12,5 +12,13 @@ public class ServerOptions extends CommonOptions {
 	public InetAddress forwardAddr;
 	public int forwardPort;
 	public int idleTimeout;
+	public int workerThreads;
+	public int dnsShards;
+	public int dnsSelectors;
+	public int dnsReceiveBuffer;
+	public boolean directBuffers;
+	public boolean dnsTCP;
+	public int longPoll;
+	public int maxWindow;
 	public DatagramChannel inheritedChannel;
 }
@@ -9,15 +9,24 @@ public class ServerPacketFactory implements PacketFactory {
 
 	private int bytesPerPacket;
 	private byte encodingType;
-
-	public ServerPacketFactory(String domain, int truncationAllowance, byte encodingType) {
-		this.bytesPerPacket = Packet.maxDataLength(domain, truncationAllowance, encodingType) - Packet.FIXED_HEADER_SIZE;
+	/** Packet.FLAG_WIDE_IDS if the connection uses 16 bit packet ids */
+	private byte idFlags;
+	private int idMask;
+
+	/**
+	 * @param maxResponseSize the udp payload size negotiated with the client
+	 * @param wideIds use 16 bit packet ids
+	 */
+	public ServerPacketFactory(String domain, int truncationAllowance, byte encodingType, int maxResponseSize, boolean wideIds) {
+		this.idFlags = wideIds ? Packet.FLAG_WIDE_IDS : 0;
+		this.idMask = wideIds ? 0xffff : 0xff;
+		this.bytesPerPacket = Packet.maxDataLength(domain, truncationAllowance, encodingType, maxResponseSize) - Packet.FIXED_HEADER_SIZE - (wideIds ? Packet.WIDE_IDS_SIZE : 0);
 	}
 
-	public Packet createPacket(byte[] data, int dataOffset, int dataLen, short clientId, byte packetId, byte flags) {
+	public Packet createPacket(byte[] data, int dataOffset, int dataLen, short clientId, int packetId, byte flags) {
 		byte[] dataCopy = new byte[dataLen];
 		System.arraycopy(data, dataOffset, dataCopy, 0, dataLen);
-		return new ServerPacket(clientId, packetId, flags, encodingType, (byte) 0, (byte) 0, dataCopy);
+		return new ServerPacket(clientId, packetId & idMask, (byte) (flags | idFlags), encodingType, 0, (byte) 0, dataCopy);
 	}
 
 	public int getMaxPacketSize() {
@@ -25,11 +34,15 @@ public class ServerPacketFactory implements PacketFactory {
 	}
 
 	public Packet createNoOp(short clientId) {
-		return new ServerPacket(clientId, (byte)0, (byte)Packet.FLAG_NO_OP, encodingType, (byte)0, (byte)0, new byte[0]);
+		return new ServerPacket(clientId, 0, (byte)(Packet.FLAG_NO_OP | idFlags), encodingType, 0, (byte)0, new byte[0]);
 	}
 
 	public Packet createConnectionClosed(short clientId) {
 		return new ConnectionClosedServerPacket(clientId);
 	}
 
+	public boolean hasWideIds() {
+		return idFlags != 0;
+	}
+
 }